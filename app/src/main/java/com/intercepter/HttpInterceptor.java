@@ -1,53 +1,78 @@
 package com.intercepter;
 
-import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.intercepter.util.TextUtil;
 import com.net.monitor.VpnManager;
-import com.net.monitor.listener.IMonitor;
+import com.net.monitor.http.HttpRequest;
+import com.net.monitor.listener.IFlowClassifier;
+import com.net.monitor.listener.IHttpMonitor;
 
 /**
  * Created by didi on 16/8/29.
  */
 public class HttpInterceptor {
+    private static final int HTTPS_PORT = 443;
 
-    //域名
+    //域名, 为空时不按域名过滤
     private String host;
     //api name + content
     private ConcurrentHashMap<String, String> api;
-    //运行在子线程
-    private IMonitor monitorCallBack = new IMonitor() {
+    //为true时该域名的请求全部由mock应答, 不再连接服务器
+    private volatile boolean mockAll;
+    private Monitor monitorCallBack = new Monitor();
+
+    //请求在拦截线程回调, request只在回调期间有效; 连接在建立时分类一次
+    private class Monitor implements IHttpMonitor, IFlowClassifier {
         @Override
-        public byte[] onSendCallBack(String payload) {
-            if (null == payload || "".equalsIgnoreCase(payload)) {
-                return null;
-            }
-            if (payload.startsWith("POST")) {
-                String[] parts = payload.split("\\r\\n");
-                String[] urls = parts[0].split("\\s");
-                String url = urls[1];
-                String requst = url.substring(url.lastIndexOf("/") + 1);
-                if(ResponseManager.getInstance().isContain(requst)) {
-                    String response = ResponseManager.getInstance().getResponse(requst);
-                    if(!TextUtil.isEmpty(response)) {
-                        return response.getBytes();
-                    }
+        public byte[] onHttpRequest(HttpRequest request) {
+            RouteIndex.Route route = ResponseManager.getInstance().getRoutes().match(request);
+            if(null != route) {
+                String response = ResponseManager.getInstance().getResponse(route.response);
+                if(!TextUtil.isEmpty(response)) {
+                    return response.getBytes();
                 }
-            } else {
-                //"GET..."
             }
             return null;
         }
-    };
+
+        @Override
+        public int classify(int address, int port, String flowHost) {
+            //HTTPS看不到请求, 无从拦截
+            if(port == HTTPS_PORT) {
+                return PASSTHROUGH;
+            }
+            //不知道域名时只能逐个请求检查
+            if(null == flowHost) {
+                return INSPECT;
+            }
+            if(TextUtil.isEmpty(host) || host.equalsIgnoreCase(flowHost)) {
+                return mockAll ? MOCKED : INSPECT;
+            }
+            //其他域名只有配置了自己的路由, 或者有不限域名的路由时才检查
+            RouteIndex routes = ResponseManager.getInstance().getRoutes();
+            return routes.hasAnyHostRoutes() || routes.hasHost(flowHost) ? INSPECT : PASSTHROUGH;
+        }
+    }
 
     public HttpInterceptor(String host, ConcurrentHashMap<String, String> api) {
         this.host = host;
         this.api = api;
     }
 
+    /**
+     * 对之后新建的连接生效, 没有mock的请求返回404
+     */
+    public void setMockAll(boolean mockAll) {
+        this.mockAll = mockAll;
+    }
+
     public void startIntercept() {
-        VpnManager.getInstance().registerMonitorListener(monitorCallBack);
+        VpnManager.getInstance().registerHttpMonitorListener(monitorCallBack);
+    }
+
+    public void stopIntercept() {
+        VpnManager.getInstance().unRegisterHttpMonitorListener(monitorCallBack);
     }
 
 }
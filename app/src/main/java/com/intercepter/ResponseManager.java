@@ -14,6 +14,8 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class ResponseManager {
     private static ConcurrentHashMap<String, String> sResponse = new ConcurrentHashMap<>();
+    //整体替换, 读的时候不加锁
+    private static volatile RouteIndex sRoutes = RouteIndex.EMPTY;
     private static final int BSIZE = 1 * 1024;
 
     private ResponseManager() {
@@ -28,6 +30,17 @@ public class ResponseManager {
         return ResponseMangerHelper.mInstance;
     }
 
+    public RouteIndex getRoutes() {
+        return sRoutes;
+    }
+
+    /**
+     * Swap in a freshly built index, requests see either the old or the new one as a whole
+     */
+    public void setRoutes(RouteIndex routes) {
+        sRoutes = routes;
+    }
+
     public boolean isContain(String api) {
         return sResponse.containsKey(api);
     }
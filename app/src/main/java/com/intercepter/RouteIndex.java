@@ -0,0 +1,356 @@
+package com.intercepter;
+
+import com.net.monitor.http.HttpRequest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable index of mocked routes by host, method and path pattern. Matching walks the request
+ * path one segment at a time against a trie, so its cost depends on the path length rather
+ * than on the number of routes, and it reads the request buffer without allocating.
+ * <p>
+ * Patterns are '/'-separated segments:
+ * <ul>
+ * <li>a literal segment matches itself,</li>
+ * <li>{@code *} matches any one segment,</li>
+ * <li>a trailing {@code **} matches whatever is left of the path (prefix route),</li>
+ * <li>a leading {@code **} followed by one segment matches any path ending in it (suffix route,
+ * what the plain {@code name.txt} response files map to).</li>
+ * </ul>
+ * More specific routes win: a host over any host, a method over any method, then a literal
+ * path over {@code *}, over the longest prefix, over a suffix. Query strings are ignored.
+ * <p>
+ * A literal segment is taken over {@code *} without looking back: with the routes {@code /a/x}
+ * and <code>/&#42;/b</code>, {@code /a/b} matches neither. Trying both would cost up to 2^depth
+ * walks on paths where every level has both.
+ */
+public class RouteIndex {
+    public static final String ANY = "*";
+    public static final RouteIndex EMPTY = new Builder().build();
+
+    private static final String[] METHODS = {
+            ANY, "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH", "CONNECT", "TRACE",
+    };
+
+    private final SegmentMap<HostRoutes> hosts;
+    private final HostRoutes anyHost;
+    private final int size;
+
+    public static class Route {
+        public final String method;
+        public final String host;
+        public final String pattern;
+        // Name of the mock response, see ResponseManager
+        public final String response;
+
+        Route(String method, String host, String pattern, String response) {
+            this.method = method;
+            this.host = host;
+            this.pattern = pattern;
+            this.response = response;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + host + " " + pattern + " -> " + response;
+        }
+    }
+
+    private RouteIndex(SegmentMap<HostRoutes> hosts, HostRoutes anyHost, int size) {
+        this.hosts = hosts;
+        this.anyHost = anyHost;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if routes were added for host itself, not counting those for any host
+     */
+    public boolean hasHost(String host) {
+        return hosts.get(host.toLowerCase()) != null;
+    }
+
+    /**
+     * @return true if some routes apply to every host, whatever its name
+     */
+    public boolean hasAnyHostRoutes() {
+        return anyHost != null;
+    }
+
+    /**
+     * @return the most specific route for the request, or null
+     */
+    public Route match(HttpRequest request) {
+        ByteBuffer buffer = request.buffer;
+        int pathStart = request.pathStart;
+        int pathEnd = request.queryStart;
+        // Absolute-form target as sent to proxies, "http://host/path"
+        if (pathEnd - pathStart > 0 && buffer.get(pathStart) != '/') {
+            int slashes = 0;
+            while (pathStart < pathEnd && (buffer.get(pathStart) != '/' || ++slashes < 3))
+                pathStart++;
+        }
+        if (pathStart >= pathEnd)
+            return null;
+
+        if (request.hostStart >= 0) {
+            int hostEnd = request.hostStart;
+            while (hostEnd < request.hostEnd && buffer.get(hostEnd) != ':')
+                hostEnd++;
+            HostRoutes hostRoutes = hosts.get(buffer, request.hostStart, hostEnd, true);
+            if (hostRoutes != null) {
+                Route route = hostRoutes.match(request.method, buffer, pathStart, pathEnd);
+                if (route != null)
+                    return route;
+            }
+        }
+        return anyHost == null ? null : anyHost.match(request.method, buffer, pathStart, pathEnd);
+    }
+
+    private static class HostRoutes {
+        // Indexed by the HttpRequest method constants, 0 for any method
+        final Node[] roots = new Node[METHODS.length];
+
+        Route match(int method, ByteBuffer buffer, int pathStart, int pathEnd) {
+            if (method > 0 && method < roots.length && roots[method] != null) {
+                Route route = roots[method].match(buffer, pathStart, pathEnd);
+                if (route != null)
+                    return route;
+            }
+            return roots[0] == null ? null : roots[0].match(buffer, pathStart, pathEnd);
+        }
+    }
+
+    private static class Node {
+        SegmentMap<Node> children;
+        Node wildcard;
+        // Route ending exactly here
+        Route route;
+        // Trailing "**" after this node
+        Route prefixRoute;
+        // Only used on roots: "**/segment" routes by last segment
+        SegmentMap<Route> suffixRoutes;
+
+        Node child(String segment) {
+            if (ANY.equals(segment)) {
+                if (wildcard == null)
+                    wildcard = new Node();
+                return wildcard;
+            }
+            if (children == null)
+                children = new SegmentMap<>();
+            Node child = children.get(segment);
+            if (child == null) {
+                child = new Node();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        Route match(ByteBuffer buffer, int pathStart, int pathEnd) {
+            // Skip the leading '/'
+            Route route = matchFrom(buffer, pathStart + 1, pathEnd);
+            if (route != null || suffixRoutes == null)
+                return route;
+            int lastStart = pathEnd;
+            while (lastStart > pathStart && buffer.get(lastStart - 1) != '/')
+                lastStart--;
+            return suffixRoutes.get(buffer, lastStart, pathEnd, false);
+        }
+
+        /**
+         * Walk the segments from position on, into the literal child where there is one and '*'
+         * otherwise. A literal segment commits the match and is never retried through '*', so
+         * the walk is linear in the path length; a path that leaves the trie falls back to the
+         * deepest prefix route on the way
+         */
+        private Route matchFrom(ByteBuffer buffer, int position, int pathEnd) {
+            Node node = this;
+            Route fallback = null;
+            while (position < pathEnd) {
+                if (node.prefixRoute != null)
+                    fallback = node.prefixRoute;
+                int segmentEnd = position;
+                while (segmentEnd < pathEnd && buffer.get(segmentEnd) != '/')
+                    segmentEnd++;
+                Node next = node.children == null ? null : node.children.get(buffer, position, segmentEnd, false);
+                if (next == null)
+                    next = node.wildcard;
+                if (next == null)
+                    return fallback;
+                node = next;
+                position = segmentEnd + 1;
+            }
+            if (node.route != null)
+                return node.route;
+            return node.prefixRoute != null ? node.prefixRoute : fallback;
+        }
+    }
+
+    /**
+     * Open-addressing map from String keys that can be probed with a region of a ByteBuffer.
+     * Hashes match String.hashCode() of the region read as ISO-8859-1, so no key is built.
+     */
+    @SuppressWarnings("unchecked")
+    private static class SegmentMap<V> {
+        private String[] keys = new String[4];
+        private Object[] values = new Object[4];
+        private int size;
+
+        V get(String key) {
+            int mask = keys.length - 1;
+            for (int i = spread(key.hashCode()) & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i].equals(key))
+                    return (V) values[i];
+            }
+            return null;
+        }
+
+        V get(ByteBuffer buffer, int start, int end, boolean ignoreCase) {
+            int hash = 0;
+            for (int i = start; i < end; i++)
+                hash = 31 * hash + (ignoreCase ? toLower(buffer.get(i) & 0xFF) : buffer.get(i) & 0xFF);
+            int mask = keys.length - 1;
+            for (int i = spread(hash) & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (regionEquals(keys[i], buffer, start, end, ignoreCase))
+                    return (V) values[i];
+            }
+            return null;
+        }
+
+        void put(String key, V value) {
+            if ((size + 1) * 2 > keys.length)
+                resize();
+            int mask = keys.length - 1;
+            int i = spread(key.hashCode()) & mask;
+            while (keys[i] != null && !keys[i].equals(key))
+                i = (i + 1) & mask;
+            if (keys[i] == null)
+                size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private void resize() {
+            String[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new String[oldKeys.length << 1];
+            values = new Object[oldKeys.length << 1];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null)
+                    put(oldKeys[i], (V) oldValues[i]);
+            }
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean regionEquals(String key, ByteBuffer buffer, int start, int end, boolean ignoreCase) {
+            if (key.length() != end - start)
+                return false;
+            for (int i = 0; i < key.length(); i++) {
+                int c = buffer.get(start + i) & 0xFF;
+                if (key.charAt(i) != (ignoreCase ? toLower(c) : c))
+                    return false;
+            }
+            return true;
+        }
+
+        private static int toLower(int c) {
+            return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+        }
+    }
+
+    /**
+     * Collects routes and compiles them into an index, which is then never modified
+     */
+    public static class Builder {
+        private final List<Route> routes = new ArrayList<>();
+
+        /**
+         * @param method  an HTTP method or {@link #ANY}
+         * @param host    a host name without port, or {@link #ANY}
+         * @param pattern a path pattern as described in {@link RouteIndex}
+         * @throws IllegalArgumentException if method or pattern is not valid
+         */
+        public Builder add(String method, String host, String pattern, String response) {
+            method = method.toUpperCase();
+            if (methodIndex(method) < 0)
+                throw new IllegalArgumentException("Unknown method: " + method);
+            if (!pattern.startsWith("/"))
+                throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+            String[] segments = pattern.substring(1).split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                if ("**".equals(segments[i]) && !(i == segments.length - 1 || (i == 0 && segments.length == 2)))
+                    throw new IllegalArgumentException("'**' only allowed first or last: " + pattern);
+            }
+            routes.add(new Route(method, host.toLowerCase(), pattern, response));
+            return this;
+        }
+
+        public RouteIndex build() {
+            SegmentMap<HostRoutes> hosts = new SegmentMap<>();
+            HostRoutes anyHost = null;
+            for (Route route : routes) {
+                HostRoutes hostRoutes;
+                if (ANY.equals(route.host)) {
+                    if (anyHost == null)
+                        anyHost = new HostRoutes();
+                    hostRoutes = anyHost;
+                } else {
+                    hostRoutes = hosts.get(route.host);
+                    if (hostRoutes == null) {
+                        hostRoutes = new HostRoutes();
+                        hosts.put(route.host, hostRoutes);
+                    }
+                }
+                int method = methodIndex(route.method);
+                if (hostRoutes.roots[method] == null)
+                    hostRoutes.roots[method] = new Node();
+                insert(hostRoutes.roots[method], route);
+            }
+            return new RouteIndex(hosts, anyHost, routes.size());
+        }
+
+        private static void insert(Node root, Route route) {
+            // A trailing '/' makes no difference, "/" itself is the root
+            String[] segments = route.pattern.substring(1).split("/");
+            if (segments.length == 1 && segments[0].isEmpty())
+                segments = new String[0];
+            if (segments.length == 2 && "**".equals(segments[0]) && !"**".equals(segments[1])) {
+                if (root.suffixRoutes == null)
+                    root.suffixRoutes = new SegmentMap<>();
+                if (root.suffixRoutes.get(segments[1]) == null)
+                    root.suffixRoutes.put(segments[1], route);
+                return;
+            }
+            Node node = root;
+            for (int i = 0; i < segments.length; i++) {
+                if ("**".equals(segments[i])) {
+                    if (node.prefixRoute == null)
+                        node.prefixRoute = route;
+                    return;
+                }
+                node = node.child(segments[i]);
+            }
+            // First route added for a pattern wins
+            if (node.route == null)
+                node.route = route;
+        }
+
+        private static int methodIndex(String method) {
+            for (int i = 0; i < METHODS.length; i++) {
+                if (METHODS[i].equals(method))
+                    return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -1,14 +1,24 @@
 package com.intercepter.task;
 
+import android.util.Log;
+
 import com.intercepter.ResponseManager;
+import com.intercepter.RouteIndex;
+import com.intercepter.util.Constant;
 import com.intercepter.util.DirList;
 
-import java.net.ResponseCache;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 
 /**
  * Created by didi on 16/9/5.
+ * 扫描响应目录, 重新生成路由索引后整体替换
  */
 public class GetApiTask implements Runnable{
+    private static final String TAG = GetApiTask.class.getSimpleName();
+
     final String path;
     final String regx;
     public GetApiTask(String path, String regx) {
@@ -17,11 +27,59 @@ public class GetApiTask implements Runnable{
     }
     @Override
     public void run() {
+        RouteIndex.Builder builder = new RouteIndex.Builder();
         String[] list = DirList.getApi(path, regx);
         if(null != list) {
             for(String item : list) {
                 item = item.substring(0, item.indexOf(".txt"));
                 ResponseManager.getInstance().getCache().put(item, "");
+                // name.txt answers POSTs to any path ending in /name, on any host
+                builder.add("POST", RouteIndex.ANY, "/**/" + item, item);
+            }
+        }
+        loadRoutes(new File(path, Constant.ROUTES_FILE), builder);
+        RouteIndex routes = builder.build();
+        ResponseManager.getInstance().setRoutes(routes);
+        Log.d(TAG, "routes = " + routes.size());
+    }
+
+    /**
+     * Read "METHOD HOST PATTERN RESPONSE" lines, '#' starts a comment. RESPONSE names a response
+     * file without its .txt extension.
+     */
+    private void loadRoutes(File file, RouteIndex.Builder builder) {
+        if(!file.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if(parts.length != 4) {
+                    Log.w(TAG, "Bad route: " + line);
+                    continue;
+                }
+                try {
+                    builder.add(parts[0], parts[1], parts[2], parts[3]);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Bad route: " + line + ", " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading " + file, e);
+        } finally {
+            if(null != reader) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
@@ -5,4 +5,8 @@ package com.intercepter.util;
  */
 public class Constant {
     public static final String PATH = "/sdcard/order/";
+    //PATH下的路由表, 每行 "METHOD HOST PATTERN RESPONSE"
+    public static final String ROUTES_FILE = "routes.conf";
+    //为true时拦截域名的请求全部由mock应答, 不再连接服务器, 没有mock的请求返回404
+    public static final boolean MOCK_ALL = false;
 }
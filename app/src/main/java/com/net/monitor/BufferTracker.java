@@ -0,0 +1,181 @@
+package com.net.monitor;
+
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ownership tracking of pooled buffers for debugging, enabled by
+ * {@link VpnConfig#BUFFER_TRACKING_SAMPLE_RATE}. One in every N acquisitions is followed until
+ * it comes back to the pool, which reports:
+ * <ul>
+ * <li>double release, with the site of the first release</li>
+ * <li>use after release: a hand-off of a released buffer, or a write to it while it sits in the
+ * pool (released buffers are poisoned and checked when acquired again)</li>
+ * <li>leaks: buffers collected by the GC without being released, with their acquisition site</li>
+ * </ul>
+ */
+class BufferTracker {
+    private static final String TAG = BufferTracker.class.getSimpleName();
+    static final boolean ENABLED = VpnConfig.BUFFER_TRACKING_SAMPLE_RATE > 0;
+    // Never zero, so the sampling modulo stays defined while tracking is disabled
+    private static final int SAMPLE_RATE = Math.max(1, VpnConfig.BUFFER_TRACKING_SAMPLE_RATE);
+    private static final byte POISON = (byte) 0xDB;
+
+    // Tracked buffers by identity hash, chained on collisions, guarded by itself
+    private static final HashMap<Integer, Record> records = new HashMap<>();
+    private static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    private static final AtomicLong acquisitions = new AtomicLong();
+    private static final AtomicLong leaks = new AtomicLong();
+    private static final AtomicLong doubleReleases = new AtomicLong();
+    private static final AtomicLong usesAfterRelease = new AtomicLong();
+
+    private BufferTracker() {
+    }
+
+    private static final class Record extends WeakReference<ByteBuffer> {
+        final int identity;
+        Record nextInBucket;
+        // Incremented on every tracked acquisition of the same buffer
+        int generation;
+        boolean released;
+        // Last stage the buffer was handed to
+        String owner;
+        Throwable acquireSite;
+        Throwable releaseSite;
+
+        Record(ByteBuffer buffer, int identity) {
+            super(buffer, collected);
+            this.identity = identity;
+        }
+    }
+
+    static void onAcquire(ByteBuffer buffer) {
+        boolean sampled = acquisitions.incrementAndGet() % SAMPLE_RATE == 0;
+        synchronized (records) {
+            Record record = find(buffer);
+            if (record != null && record.released && !isPoisonIntact(buffer)) {
+                usesAfterRelease.incrementAndGet();
+                Log.e(TAG, "Buffer written after release, generation " + record.generation
+                        + ", last owner " + record.owner, record.releaseSite);
+            }
+            if (!sampled) {
+                if (record != null)
+                    remove(record);
+            } else {
+                if (record == null)
+                    record = add(buffer);
+                record.generation++;
+                record.released = false;
+                record.owner = null;
+                record.acquireSite = new Throwable("Acquired on " + Thread.currentThread().getName());
+                record.releaseSite = null;
+            }
+        }
+        pollCollected();
+    }
+
+    /**
+     * @return false if the buffer must not go back to the pool
+     */
+    static boolean onRelease(ByteBuffer buffer) {
+        synchronized (records) {
+            Record record = find(buffer);
+            if (record == null)
+                return true;
+            if (record.released) {
+                doubleReleases.incrementAndGet();
+                Log.e(TAG, "Buffer released twice, generation " + record.generation + ", last owner "
+                        + record.owner, new Throwable("Released again on " + Thread.currentThread().getName()));
+                Log.e(TAG, "First release", record.releaseSite);
+                return false;
+            }
+            record.released = true;
+            record.releaseSite = new Throwable("Released on " + Thread.currentThread().getName());
+        }
+        for (int i = 0; i < buffer.capacity(); i++)
+            buffer.put(i, POISON);
+        return true;
+    }
+
+    /**
+     * Record a hand-off of the buffer to owner
+     */
+    static void touch(ByteBuffer buffer, String owner) {
+        synchronized (records) {
+            Record record = find(buffer);
+            if (record == null)
+                return;
+            if (record.released) {
+                usesAfterRelease.incrementAndGet();
+                Log.e(TAG, "Released buffer handed to " + owner + ", generation " + record.generation,
+                        record.releaseSite);
+            }
+            record.owner = owner;
+        }
+    }
+
+    private static void pollCollected() {
+        Record record;
+        while ((record = (Record) collected.poll()) != null) {
+            synchronized (records) {
+                remove(record);
+            }
+            // Buffers dropped by the pool while free are collected too, that's fine
+            if (!record.released) {
+                leaks.incrementAndGet();
+                Log.e(TAG, "Buffer leaked, generation " + record.generation + ", last owner " + record.owner,
+                        record.acquireSite);
+            }
+        }
+    }
+
+    private static boolean isPoisonIntact(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != POISON)
+                return false;
+        }
+        return true;
+    }
+
+    private static Record find(ByteBuffer buffer) {
+        Record record = records.get(System.identityHashCode(buffer));
+        while (record != null && record.get() != buffer)
+            record = record.nextInBucket;
+        return record;
+    }
+
+    private static Record add(ByteBuffer buffer) {
+        int identity = System.identityHashCode(buffer);
+        Record record = new Record(buffer, identity);
+        record.nextInBucket = records.get(identity);
+        records.put(identity, record);
+        return record;
+    }
+
+    private static void remove(Record record) {
+        Record head = records.get(record.identity);
+        if (head == record) {
+            if (record.nextInBucket == null)
+                records.remove(record.identity);
+            else
+                records.put(record.identity, record.nextInBucket);
+        } else {
+            while (head != null && head.nextInBucket != record)
+                head = head.nextInBucket;
+            if (head != null)
+                head.nextInBucket = record.nextInBucket;
+        }
+        record.clear();
+    }
+
+    static String getStats() {
+        return "buffer tracking: " + leaks.get() + " leaks, " + doubleReleases.get() + " double releases, "
+                + usesAfterRelease.get() + " uses after release";
+    }
+}
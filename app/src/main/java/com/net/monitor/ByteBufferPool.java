@@ -17,25 +17,303 @@
 package com.net.monitor;
 
 import java.nio.ByteBuffer;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Direct buffers pooled by size class, so that a pure ACK does not pin a buffer sized for a
+ * whole socket read.
+ * <p>
+ * Buffers are slices carved out of large direct slabs, so a miss costs no allocateDirect() and
+ * the number of direct allocations stays small. Each thread keeps a magazine of free buffers
+ * per class; full and empty magazines are exchanged with a shared lock-free stack, so the fast
+ * path touches no shared state. Carved memory is capped, beyond the cap buffers come from the
+ * heap and are not pooled. Free magazines beyond the retained amount are dropped after bursts.
+ * <p>
+ * {@link #clear()} starts a new generation with fresh accounting. Magazines of the old one, in
+ * the shared stack or cached by threads that are gone, are left to the GC, so buffers that can
+ * never come back don't count against the cap of later runs.
+ */
 public class ByteBufferPool {
-    private static final int BUFFER_SIZE = 16384; // XXX: Is this ideal?
-    private static ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    // Headers only: ACK, RST, SYN-ACK with options
+    public static final int SMALL = 128;
+    // One tun packet or one MSS-sized segment with its headers
+    public static final int MTU = VpnConfig.MTU;
+    // Socket reads that are not split by MSS (UDP)
+    public static final int LARGE = 16384;
+
+    // Buffers moved between a thread and the shared stack at a time
+    private static final int MAGAZINE_SIZE = 32;
+    private static final int SLAB_SIZE = 256 * 1024;
+
+    private static final SizeClass[] classes = {
+            new SizeClass(0, SMALL), new SizeClass(1, MTU), new SizeClass(2, LARGE)
+    };
+
+    // Bytes carved out of slabs and not dropped since, for all classes together. Buffers handed
+    // out before the last clear() and released after it are taken back uncounted, so a new
+    // generation may overshoot the cap by what was in flight when the old one ended.
+    private static final AtomicLong carvedBytes = new AtomicLong();
+    // Bumped by clear(), magazines of older generations are never reused
+    private static volatile int generation;
+
+    private static final ThreadLocal<Magazine[]> localCaches = new ThreadLocal<>();
+
+    private static final class Magazine {
+        final ByteBuffer[] buffers = new ByteBuffer[MAGAZINE_SIZE];
+        final int generation = ByteBufferPool.generation;
+        int count;
+    }
+
+    // Shared stack node, a new one per push
+    private static final class Node {
+        final Magazine magazine;
+        final Node next;
+
+        Node(Magazine magazine, Node next) {
+            this.magazine = magazine;
+            this.next = next;
+        }
+    }
+
+    private static final class SizeClass {
+        final int index;
+        final int capacity;
+        final int maxFreeMagazines;
+
+        // Treiber stack of full magazines. Magazines go back and forth between threads, but
+        // nodes are never reused, so ABA can't happen while the GC keeps popped nodes alive.
+        final AtomicReference<Node> freeStack = new AtomicReference<>();
+        final AtomicInteger freeMagazines = new AtomicInteger();
+        // Slab currently being carved, guarded by this
+        ByteBuffer slab;
+
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong overflows = new AtomicLong();
+        final AtomicLong shrunk = new AtomicLong();
+
+        SizeClass(int index, int capacity) {
+            this.index = index;
+            this.capacity = capacity;
+            this.maxFreeMagazines = Math.max(1, VpnConfig.BUFFER_POOL_RETAIN_BYTES / capacity / MAGAZINE_SIZE);
+        }
+
+        void push(Magazine magazine) {
+            // Cached by a thread before the last clear(), already written off
+            if (magazine.generation != generation)
+                return;
+            if (freeMagazines.incrementAndGet() > maxFreeMagazines) {
+                // Burst is over, leave the buffers to the GC. Their slab is freed once all
+                // of its slices are unreachable.
+                freeMagazines.decrementAndGet();
+                drop(magazine.count);
+                return;
+            }
+            Node head;
+            do {
+                head = freeStack.get();
+            } while (!freeStack.compareAndSet(head, new Node(magazine, head)));
+        }
+
+        Magazine pop() {
+            Node head;
+            do {
+                head = freeStack.get();
+                if (head == null)
+                    return null;
+            } while (!freeStack.compareAndSet(head, head.next));
+            freeMagazines.decrementAndGet();
+            return head.magazine;
+        }
+
+        /**
+         * Empty the shared stack, leaving its magazines to the GC
+         */
+        void reset() {
+            while (pop() != null) {
+                // Discard
+            }
+        }
+
+        void drop(int buffers) {
+            shrunk.addAndGet(buffers);
+            carvedBytes.addAndGet(-(long) buffers * capacity);
+        }
+
+        /**
+         * @return a new slice, or null if the cap is reached
+         */
+        synchronized ByteBuffer carve() {
+            if (carvedBytes.addAndGet(capacity) > VpnConfig.BUFFER_POOL_MAX_BYTES) {
+                carvedBytes.addAndGet(-capacity);
+                return null;
+            }
+            if (slab == null || slab.remaining() < capacity) {
+                int slices = Math.max(1, SLAB_SIZE / capacity);
+                slab = ByteBuffer.allocateDirect(slices * capacity);
+            }
+            slab.limit(slab.position() + capacity);
+            ByteBuffer slice = slab.slice();
+            slab.position(slab.limit());
+            slab.limit(slab.capacity());
+            return slice;
+        }
+    }
 
     public static ByteBuffer acquire() {
-        ByteBuffer buffer = pool.poll();
-        if (buffer == null)
-            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // Using DirectBuffer for zero-copy
+        return acquire(LARGE);
+    }
+
+    /**
+     * @return a cleared buffer of the smallest size class holding at least minCapacity bytes,
+     * or an unpooled one for sizes above the largest class
+     */
+    public static ByteBuffer acquire(int minCapacity) {
+        SizeClass sizeClass = classFor(minCapacity);
+        if (sizeClass == null)
+            return ByteBuffer.allocateDirect(minCapacity);
+
+        Magazine[] magazines = localMagazines();
+        Magazine magazine = magazines[sizeClass.index];
+        if (magazine.count == 0) {
+            Magazine full = sizeClass.pop();
+            if (full != null)
+                magazines[sizeClass.index] = magazine = full;
+        }
+        ByteBuffer buffer;
+        if (magazine.count > 0) {
+            sizeClass.hits.incrementAndGet();
+            buffer = magazine.buffers[--magazine.count];
+            magazine.buffers[magazine.count] = null;
+        } else {
+            sizeClass.misses.incrementAndGet();
+            buffer = sizeClass.carve();
+            if (buffer == null) {
+                // Over the cap, a heap buffer works everywhere a direct one does, just slower
+                sizeClass.overflows.incrementAndGet();
+                return ByteBuffer.allocate(sizeClass.capacity);
+            }
+        }
+        if (BufferTracker.ENABLED)
+            BufferTracker.onAcquire(buffer);
         return buffer;
     }
 
     public static void release(ByteBuffer buffer) {
+        SizeClass sizeClass = classFor(buffer.capacity());
+        // Heap overflow buffers and buffers of other sizes were allocated outside the pool
+        if (sizeClass == null || sizeClass.capacity != buffer.capacity() || !buffer.isDirect())
+            return;
         buffer.clear();
-        pool.offer(buffer);
+        if (BufferTracker.ENABLED && !BufferTracker.onRelease(buffer))
+            return;
+
+        Magazine[] magazines = localMagazines();
+        Magazine magazine = magazines[sizeClass.index];
+        if (magazine.count == MAGAZINE_SIZE) {
+            sizeClass.push(magazine);
+            magazines[sizeClass.index] = magazine = new Magazine();
+        }
+        magazine.buffers[magazine.count++] = buffer;
+    }
+
+    /**
+     * Note a hand-off of the buffer to another stage, for the leak reports of tracked mode
+     */
+    public static void touch(ByteBuffer buffer, String owner) {
+        if (BufferTracker.ENABLED)
+            BufferTracker.touch(buffer, owner);
     }
 
+    /**
+     * @return the calling thread's magazines, fresh ones if its cache predates the last clear()
+     */
+    private static Magazine[] localMagazines() {
+        Magazine[] magazines = localCaches.get();
+        if (magazines == null || magazines[0].generation != generation) {
+            magazines = new Magazine[classes.length];
+            for (int i = 0; i < magazines.length; i++)
+                magazines[i] = new Magazine();
+            localCaches.set(magazines);
+        }
+        return magazines;
+    }
+
+    private static SizeClass classFor(int capacity) {
+        for (SizeClass sizeClass : classes) {
+            if (capacity <= sizeClass.capacity)
+                return sizeClass;
+        }
+        return null;
+    }
+
+    /**
+     * Carve bytesPerClass of every size class up front, so the first connections don't pay for
+     * slab allocation
+     */
+    public static void prewarm(int bytesPerClass) {
+        for (SizeClass sizeClass : classes) {
+            int buffers = bytesPerClass / sizeClass.capacity;
+            Magazine magazine = new Magazine();
+            for (int i = 0; i < buffers; i++) {
+                ByteBuffer buffer = sizeClass.carve();
+                if (buffer == null)
+                    break;
+                magazine.buffers[magazine.count++] = buffer;
+                if (magazine.count == MAGAZINE_SIZE) {
+                    sizeClass.push(magazine);
+                    magazine = new Magazine();
+                }
+            }
+            if (magazine.count > 0)
+                sizeClass.push(magazine);
+        }
+    }
+
+    /**
+     * Start a new generation on service stop: drop the shared free buffers and forget about the
+     * ones still cached by threads or held in queues, whose threads may never run again.
+     */
     public static void clear() {
-        pool.clear();
+        generation++;
+        for (SizeClass sizeClass : classes)
+            sizeClass.reset();
+        carvedBytes.set(0);
+    }
+
+    public static long getHits() {
+        long hits = 0;
+        for (SizeClass sizeClass : classes)
+            hits += sizeClass.hits.get();
+        return hits;
+    }
+
+    public static long getMisses() {
+        long misses = 0;
+        for (SizeClass sizeClass : classes)
+            misses += sizeClass.misses.get();
+        return misses;
+    }
+
+    /**
+     * Direct memory carved out of slabs and still owned by the pool or its users
+     */
+    public static long getCarvedBytes() {
+        return carvedBytes.get();
+    }
+
+    public static String getStats() {
+        StringBuilder sb = new StringBuilder("pool ").append(carvedBytes.get() / 1024).append("K carved");
+        for (SizeClass sizeClass : classes) {
+            sb.append("; ").append(sizeClass.capacity).append("B: ")
+                    .append(sizeClass.freeMagazines.get() * MAGAZINE_SIZE).append(" shared free, ")
+                    .append(sizeClass.hits.get()).append(" hits, ")
+                    .append(sizeClass.misses.get()).append(" misses, ")
+                    .append(sizeClass.overflows.get()).append(" overflows, ")
+                    .append(sizeClass.shrunk.get()).append(" shrunk");
+        }
+        return sb.toString();
     }
 }
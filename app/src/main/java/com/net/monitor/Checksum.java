@@ -0,0 +1,107 @@
+package com.net.monitor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Internet checksum (RFC 1071) helpers. Sums are kept as unfolded ints so callers can add
+ * precomputed partial sums together and fold once.
+ */
+public class Checksum {
+    private Checksum() {
+    }
+
+    /**
+     * One's complement sum of length bytes starting at the absolute offset, an odd trailing byte
+     * being padded with zero. Returns the folded 16 bit partial sum, not complemented.
+     * <p>
+     * The bulk is read 64 bits at a time and added as two 32 bit halves into a long, which can
+     * not overflow for any buffer size, so carries are folded only once at the end. One's
+     * complement addition is associative, so this equals summing 16 bit words one by one.
+     */
+    public static int sum(ByteBuffer buffer, int offset, int length) {
+        if (buffer.order() != ByteOrder.BIG_ENDIAN)
+            return sumShorts(buffer, offset, length);
+
+        long sum = 0;
+        while (length >= 8) {
+            long word = buffer.getLong(offset);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            offset += 8;
+            length -= 8;
+        }
+        if (length >= 4) {
+            sum += buffer.getInt(offset) & 0xFFFFFFFFL;
+            offset += 4;
+            length -= 4;
+        }
+        if (length >= 2) {
+            sum += buffer.getShort(offset) & 0xFFFF;
+            offset += 2;
+            length -= 2;
+        }
+        if (length > 0)
+            sum += (buffer.get(offset) & 0xFF) << 8;
+
+        sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        return fold((int) ((sum & 0xFFFF) + ((sum >>> 16) & 0xFFFF)));
+    }
+
+    /**
+     * Reference 16 bit at a time implementation, used for buffers that are not big-endian.
+     */
+    static int sumShorts(ByteBuffer buffer, int offset, int length) {
+        int sum = 0;
+        while (length > 1) {
+            sum += ((buffer.get(offset) & 0xFF) << 8) | (buffer.get(offset + 1) & 0xFF);
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+            offset += 2;
+            length -= 2;
+        }
+        if (length > 0)
+            sum += (buffer.get(offset) & 0xFF) << 8;
+        return fold(sum);
+    }
+
+    /**
+     * Partial sum of the TCP/UDP pseudo-header without the length field, which changes per segment.
+     */
+    public static int pseudoHeaderSum(int sourceAddress, int destinationAddress, int protocol) {
+        return (sourceAddress >>> 16) + (sourceAddress & 0xFFFF)
+                + (destinationAddress >>> 16) + (destinationAddress & 0xFFFF)
+                + protocol;
+    }
+
+    /**
+     * Partial sum of a 32 bit header field.
+     */
+    public static int sum32(long value) {
+        return (int) ((value >>> 16) & 0xFFFF) + (int) (value & 0xFFFF);
+    }
+
+    /**
+     * Fold carries back into the low 16 bits.
+     */
+    public static int fold(int sum) {
+        while (sum >>> 16 != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        return sum;
+    }
+
+    /**
+     * Final checksum of a partial sum, ready to be stored in a header.
+     */
+    public static short finish(int sum) {
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Incremental update of a stored checksum when one 16 bit word of the covered data changes
+     * from oldWord to newWord, HC' = ~(~HC + ~m + m') (RFC 1624, eqn. 3).
+     */
+    public static int update(int checksum, int oldWord, int newWord) {
+        int sum = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+        return ~fold(sum) & 0xFFFF;
+    }
+}
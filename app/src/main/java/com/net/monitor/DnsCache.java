@@ -0,0 +1,170 @@
+package com.net.monitor;
+
+import android.util.Log;
+
+import com.net.monitor.util.AppUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Successful DNS responses by question, kept until their smallest answer TTL runs out.
+ * Not thread safe, {@link DnsResolver} serializes access.
+ * <p>
+ * Expiry uses the wall clock so that entries written by {@link #save(File)} are still valid
+ * after a restart.
+ */
+public class DnsCache {
+    private static final String TAG = DnsCache.class.getSimpleName();
+
+    // "DNS" and a format version
+    private static final int FILE_MAGIC = 0x444E5301;
+
+    private final LRUCache<String, Entry> entries;
+
+    static class Entry {
+        final byte[] response;
+        final int[] ttlOffsets;
+        final long expiresAt;
+
+        Entry(byte[] response, int[] ttlOffsets, long expiresAt) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public DnsCache(int maxEntries) {
+        entries = new LRUCache<>(maxEntries, new LRUCache.CleanupCallback<String, Entry>() {
+            @Override
+            public void cleanup(Map.Entry<String, Entry> eldest) {
+                // Nothing to release
+            }
+        });
+    }
+
+    /**
+     * Copy a parsed response in, if its TTL allows caching it at all. Its addresses are recorded
+     * in {@link HostNames} either way.
+     */
+    public void put(DnsMessage message, ByteBuffer buffer, int offset, int length) {
+        HostNames.record(message);
+        long ttl = Math.min(message.minTtl, VpnConfig.DNS_MAX_TTL_SECONDS);
+        if (ttl <= 0 || length > VpnConfig.DNS_MAX_RESPONSE_SIZE)
+            return;
+        byte[] response = new byte[length];
+        for (int i = 0; i < length; i++)
+            response[i] = buffer.get(offset + i);
+        entries.put(message.key, new Entry(response, message.ttlOffsets, System.currentTimeMillis() + ttl * 1000));
+    }
+
+    /**
+     * Write the cached response for key into buffer at offset, with the query's ID and every TTL
+     * lowered to the remaining lifetime of the entry
+     *
+     * @return the response length, or -1 on a miss
+     */
+    public int get(String key, int id, ByteBuffer buffer, int offset) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return -1;
+        long remaining = (entry.expiresAt - System.currentTimeMillis()) / 1000;
+        if (remaining <= 0) {
+            entries.remove(key);
+            return -1;
+        }
+        if (buffer.capacity() - offset < entry.response.length)
+            return -1;
+
+        for (int i = 0; i < entry.response.length; i++)
+            buffer.put(offset + i, entry.response[i]);
+        buffer.putShort(offset, (short) id);
+        for (int ttlOffset : entry.ttlOffsets)
+            buffer.putInt(offset + ttlOffset, (int) remaining);
+        return entry.response.length;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Load the entries saved by {@link #save(File)} that have not expired since
+     */
+    public void load(File file) {
+        if (!file.exists())
+            return;
+        DataInputStream in = null;
+        int loaded = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC)
+                return;
+            int count = in.readInt();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                long expiresAt = in.readLong();
+                byte[] response = new byte[in.readUnsignedShort()];
+                in.readFully(response);
+                if (expiresAt <= now)
+                    continue;
+                // Re-parse rather than trust the file for the key and TTL offsets
+                DnsMessage message = DnsMessage.parseResponse(ByteBuffer.wrap(response), 0, response.length);
+                if (message == null)
+                    continue;
+                HostNames.record(message);
+                entries.put(message.key, new Entry(response, message.ttlOffsets, expiresAt));
+                loaded++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error loading " + file, e);
+        } finally {
+            if (in != null)
+                AppUtils.closeResources(in);
+        }
+        Log.i(TAG, "Loaded " + loaded + " entries");
+    }
+
+    /**
+     * Write the live entries to file as [expiry, length, response] records, replacing it
+     */
+    public void save(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            long now = System.currentTimeMillis();
+            int count = 0;
+            for (Entry entry : entries.values()) {
+                if (entry.expiresAt > now)
+                    count++;
+            }
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(count);
+            for (Entry entry : entries.values()) {
+                if (entry.expiresAt <= now)
+                    continue;
+                out.writeLong(entry.expiresAt);
+                out.writeShort(entry.response.length);
+                out.write(entry.response);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file))
+                Log.w(TAG, "Error renaming " + temp);
+        } catch (IOException e) {
+            Log.w(TAG, "Error saving " + file, e);
+        } finally {
+            if (out != null)
+                AppUtils.closeResources(out);
+        }
+    }
+}
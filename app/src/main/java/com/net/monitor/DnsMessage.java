@@ -0,0 +1,181 @@
+package com.net.monitor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Minimal RFC 1035 parsing of plain single-question DNS messages, just what {@link DnsResolver}
+ * needs: the question as a cache key, and where the TTLs of a response are
+ */
+public class DnsMessage {
+    public static final int PORT = 53;
+    public static final int HEADER_SIZE = 12;
+
+    private static final int FLAGS = 2;
+    private static final int QUESTION_COUNT = 4;
+    private static final int ANSWER_COUNT = 6;
+    private static final int AUTHORITY_COUNT = 8;
+    private static final int ADDITIONAL_COUNT = 10;
+
+    private static final int FLAG_RESPONSE = 0x8000;
+    private static final int FLAG_TRUNCATED = 0x0200;
+    private static final int OPCODE_MASK = 0x7800;
+    private static final int RCODE_MASK = 0x000F;
+
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+    // EDNS pseudo-record, its TTL field holds flags
+    private static final int TYPE_OPT = 41;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    // Cache key of the question, e.g. "example.com/1/1" (name/type/class)
+    public String key;
+    // Offset just past the question section
+    public int questionEnd;
+    // Set for responses only: smallest answer TTL in seconds and the offsets of all record TTLs
+    public long minTtl;
+    public int[] ttlOffsets;
+    // Set for responses only: IPv4 addresses of the A records among the answers
+    public int[] addresses;
+
+    private DnsMessage() {
+    }
+
+    /**
+     * @return the parsed query, or null if the message is not a standard query with exactly one
+     * question and no records
+     */
+    public static DnsMessage parseQuery(ByteBuffer buffer, int offset, int length) {
+        if (length < HEADER_SIZE)
+            return null;
+        int flags = buffer.getShort(offset + FLAGS) & 0xFFFF;
+        if ((flags & (FLAG_RESPONSE | OPCODE_MASK)) != 0 || count(buffer, offset, QUESTION_COUNT) != 1
+                || count(buffer, offset, ANSWER_COUNT) != 0 || count(buffer, offset, AUTHORITY_COUNT) != 0)
+            return null;
+        // Additional records are allowed, queries usually carry an EDNS OPT record
+        DnsMessage message = new DnsMessage();
+        return message.readQuestion(buffer, offset, length) ? message : null;
+    }
+
+    /**
+     * @return the parsed response, or null if it is not a complete, successful answer to a single
+     * question that is worth caching
+     */
+    public static DnsMessage parseResponse(ByteBuffer buffer, int offset, int length) {
+        if (length < HEADER_SIZE)
+            return null;
+        int flags = buffer.getShort(offset + FLAGS) & 0xFFFF;
+        if ((flags & FLAG_RESPONSE) == 0 || (flags & (OPCODE_MASK | FLAG_TRUNCATED | RCODE_MASK)) != 0
+                || count(buffer, offset, QUESTION_COUNT) != 1)
+            return null;
+        int answers = count(buffer, offset, ANSWER_COUNT);
+        if (answers == 0)
+            return null;
+        DnsMessage message = new DnsMessage();
+        if (!message.readQuestion(buffer, offset, length))
+            return null;
+
+        int records = answers + count(buffer, offset, AUTHORITY_COUNT) + count(buffer, offset, ADDITIONAL_COUNT);
+        int[] ttlOffsets = new int[records];
+        int ttlCount = 0;
+        int[] addresses = new int[answers];
+        int addressCount = 0;
+        long minTtl = Long.MAX_VALUE;
+        int position = message.questionEnd;
+        for (int i = 0; i < records; i++) {
+            position = skipName(buffer, offset, length, position);
+            if (position < 0 || position + 10 > length)
+                return null;
+            int type = buffer.getShort(offset + position) & 0xFFFF;
+            int dataLength = buffer.getShort(offset + position + 8) & 0xFFFF;
+            if (type != TYPE_OPT) {
+                ttlOffsets[ttlCount++] = position + 4;
+                long ttl = buffer.getInt(offset + position + 4) & 0xFFFFFFFFL;
+                if (i < answers && ttl < minTtl)
+                    minTtl = ttl;
+            }
+            if (i < answers && type == TYPE_A && dataLength == 4 && position + 14 <= length
+                    && (buffer.getShort(offset + position + 2) & 0xFFFF) == CLASS_IN)
+                addresses[addressCount++] = buffer.getInt(offset + position + 10);
+            position += 10 + dataLength;
+            if (position > length)
+                return null;
+        }
+        message.minTtl = minTtl;
+        message.ttlOffsets = Arrays.copyOf(ttlOffsets, ttlCount);
+        message.addresses = Arrays.copyOf(addresses, addressCount);
+        return message;
+    }
+
+    /**
+     * @return the message with just its question parsed, or null if it doesn't have exactly one
+     */
+    public static DnsMessage parseQuestion(ByteBuffer buffer, int offset, int length) {
+        if (length < HEADER_SIZE || count(buffer, offset, QUESTION_COUNT) != 1)
+            return null;
+        DnsMessage message = new DnsMessage();
+        return message.readQuestion(buffer, offset, length) ? message : null;
+    }
+
+    /**
+     * @return the name part of a key, e.g. "example.com"
+     */
+    public static String getName(String key) {
+        return key.substring(0, key.indexOf('/'));
+    }
+
+    public static int getId(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    private static int count(ByteBuffer buffer, int offset, int field) {
+        return buffer.getShort(offset + field) & 0xFFFF;
+    }
+
+    /**
+     * Read the uncompressed question name into a lowercase key, questions never use pointers
+     */
+    private boolean readQuestion(ByteBuffer buffer, int offset, int length) {
+        StringBuilder sb = new StringBuilder();
+        int position = HEADER_SIZE;
+        while (true) {
+            if (position >= length)
+                return false;
+            int labelLength = buffer.get(offset + position++) & 0xFF;
+            if (labelLength == 0)
+                break;
+            if (labelLength > 63 || position + labelLength > length || sb.length() + labelLength >= MAX_NAME_LENGTH)
+                return false;
+            if (sb.length() > 0)
+                sb.append('.');
+            for (int i = 0; i < labelLength; i++)
+                sb.append(Character.toLowerCase((char) (buffer.get(offset + position + i) & 0xFF)));
+            position += labelLength;
+        }
+        if (position + 4 > length)
+            return false;
+        int type = buffer.getShort(offset + position) & 0xFFFF;
+        int qclass = buffer.getShort(offset + position + 2) & 0xFFFF;
+        sb.append('/').append(type).append('/').append(qclass);
+        key = sb.toString();
+        questionEnd = position + 4;
+        return true;
+    }
+
+    /**
+     * @return the offset after the possibly compressed name at position, -1 if malformed
+     */
+    private static int skipName(ByteBuffer buffer, int offset, int length, int position) {
+        while (position < length) {
+            int labelLength = buffer.get(offset + position) & 0xFF;
+            if ((labelLength & 0xC0) == 0xC0)
+                return position + 2; // A pointer ends the name
+            if (labelLength > 63)
+                return -1;
+            position += 1 + labelLength;
+            if (labelLength == 0)
+                return position;
+        }
+        return -1;
+    }
+}
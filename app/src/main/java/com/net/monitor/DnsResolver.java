@@ -0,0 +1,191 @@
+package com.net.monitor;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers device DNS queries from a {@link DnsCache} straight into the device queue, and lets
+ * only one query per question go upstream at a time. Queries are seen by {@link UDPOutput},
+ * responses by {@link UDPInput}, so everything here is synchronized.
+ */
+public class DnsResolver {
+    private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE;
+
+    private final PacketQueue outputQueue;
+    private final File cacheFile;
+    private final DnsCache cache = new DnsCache(VpnConfig.DNS_CACHE_SIZE);
+    // Questions sent upstream and still unanswered, with the queries that wait on them
+    private final Map<String, Pending> pending = new HashMap<>();
+    // Last time stale pending questions were dropped
+    private long lastExpiry = TimingWheel.nowMillis();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private static class Pending {
+        final long sentTime = TimingWheel.nowMillis();
+        // Device source port of the query that went upstream
+        final int sourcePort;
+        final List<Waiter> waiters;
+
+        Pending(int sourcePort, List<Waiter> waiters) {
+            this.sourcePort = sourcePort;
+            this.waiters = waiters;
+        }
+    }
+
+    private static class Waiter {
+        // Device-bound header template, as kept by UDPOutput for its channels
+        final Packet referencePacket;
+        final int sourcePort;
+        final int id;
+
+        Waiter(Packet referencePacket, int sourcePort, int id) {
+            this.referencePacket = referencePacket;
+            this.sourcePort = sourcePort;
+            this.id = id;
+        }
+    }
+
+    public DnsResolver(PacketQueue outputQueue, File cacheFile) {
+        this.outputQueue = outputQueue;
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Answer a device query from the cache, or park it behind an identical query that is already
+     * upstream. A retransmit from a port already waiting on the question goes upstream again, the
+     * query it repeats may have been lost. Swaps the packet's addresses when answering it.
+     *
+     * @param packet a UDP packet to port 53, positioned at its payload
+     * @return true if the query was consumed, false if it has to be sent upstream
+     */
+    public boolean handleQuery(Packet packet) {
+        ByteBuffer payload = packet.backingBuffer;
+        int offset = payload.position();
+        DnsMessage query = DnsMessage.parseQuery(payload, offset, payload.limit() - offset);
+        if (query == null)
+            return false;
+        int id = DnsMessage.getId(payload, offset);
+        int sourcePort = packet.getSourcePort();
+
+        ByteBuffer responseBuffer = ByteBufferPool.acquire(HEADER_SIZE + VpnConfig.DNS_MAX_RESPONSE_SIZE);
+        int responseLength;
+        synchronized (this) {
+            responseLength = cache.get(query.key, id, responseBuffer, HEADER_SIZE);
+            if (responseLength < 0) {
+                ByteBufferPool.release(responseBuffer);
+                misses.incrementAndGet();
+                long now = TimingWheel.nowMillis();
+                expirePending(now);
+                Pending upstream = pending.get(query.key);
+                if (upstream == null || now - upstream.sentTime > VpnConfig.DNS_PENDING_TIMEOUT_MS
+                        || upstream.waiters.size() >= VpnConfig.DNS_MAX_WAITERS) {
+                    // This one goes upstream, an earlier lost query doesn't hold it back
+                    pending.put(query.key, new Pending(sourcePort, new ArrayList<Waiter>()));
+                    return false;
+                }
+                if (isRetransmit(upstream, sourcePort)) {
+                    // The other waiters are answered by whichever reply comes first
+                    pending.put(query.key, new Pending(sourcePort, upstream.waiters));
+                    return false;
+                }
+                Packet referencePacket = packet.copyHeader();
+                referencePacket.swapSourceAndDestination();
+                upstream.waiters.add(new Waiter(referencePacket, sourcePort, id));
+                coalesced.incrementAndGet();
+                return true;
+            }
+        }
+
+        hits.incrementAndGet();
+        packet.swapSourceAndDestination();
+        packet.updateUDPBuffer(responseBuffer, responseLength);
+        responseBuffer.position(HEADER_SIZE + responseLength);
+        outputQueue.offer(responseBuffer);
+        return true;
+    }
+
+    /**
+     * A query from sourcePort is already upstream or parked: its application gave up waiting
+     */
+    private static boolean isRetransmit(Pending upstream, int sourcePort) {
+        if (upstream.sourcePort == sourcePort)
+            return true;
+        for (Iterator<Waiter> it = upstream.waiters.iterator(); it.hasNext(); ) {
+            if (it.next().sourcePort == sourcePort) {
+                // Answered through the new upstream query instead
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop questions unanswered for longer than the pending timeout, their waiters retry on
+     * their own. Runs at most once per timeout period.
+     */
+    private void expirePending(long now) {
+        if (now - lastExpiry < VpnConfig.DNS_PENDING_TIMEOUT_MS)
+            return;
+        lastExpiry = now;
+        for (Iterator<Pending> it = pending.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().sentTime > VpnConfig.DNS_PENDING_TIMEOUT_MS)
+                it.remove();
+        }
+    }
+
+    /**
+     * Cache an upstream response and answer the queries that were waiting on its question.
+     * Failed and uncacheable responses, such as NXDOMAIN, are passed on to the waiters too.
+     * Does not touch the response itself, it is still forwarded to the device that asked.
+     */
+    public void handleResponse(ByteBuffer buffer, int offset, int length) {
+        DnsMessage response = DnsMessage.parseResponse(buffer, offset, length);
+        if (response == null)
+            response = DnsMessage.parseQuestion(buffer, offset, length);
+        if (response == null)
+            return;
+
+        Pending upstream;
+        synchronized (this) {
+            // Only successful answers carry TTL offsets
+            if (response.ttlOffsets != null)
+                cache.put(response, buffer, offset, length);
+            upstream = pending.remove(response.key);
+        }
+        if (upstream == null)
+            return;
+        for (Waiter waiter : upstream.waiters) {
+            ByteBuffer responseBuffer = ByteBufferPool.acquire(HEADER_SIZE + length);
+            for (int i = 0; i < length; i++)
+                responseBuffer.put(HEADER_SIZE + i, buffer.get(offset + i));
+            responseBuffer.putShort(HEADER_SIZE, (short) waiter.id);
+            waiter.referencePacket.updateUDPBuffer(responseBuffer, length);
+            responseBuffer.position(HEADER_SIZE + length);
+            outputQueue.offer(responseBuffer);
+        }
+    }
+
+    public synchronized void load() {
+        cache.load(cacheFile);
+    }
+
+    public synchronized void save() {
+        cache.save(cacheFile);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "dns cache=" + cache.size() + " hits=" + hits.get() + " misses=" + misses.get()
+                + " coalesced=" + coalesced.get() + " pending=" + pending.size();
+    }
+}
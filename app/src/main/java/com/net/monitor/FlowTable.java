@@ -0,0 +1,193 @@
+package com.net.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent map from a packed long flow key to a value, without per-lookup allocation.
+ * The key space is split into stripes, each an open-addressing table with linear probing
+ * guarded by its own monitor, so threads working on different flows rarely meet on a lock.
+ */
+@SuppressWarnings("unchecked")
+public class FlowTable<V> {
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final Object TOMBSTONE = new Object();
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicInteger size = new AtomicInteger();
+
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    public FlowTable(int expectedSize) {
+        int stripeCapacity = 8;
+        while (stripeCapacity * LOAD_FACTOR * STRIPES < expectedSize)
+            stripeCapacity <<= 1;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(stripeCapacity);
+    }
+
+    public V get(long key) {
+        int hash = hash(key);
+        Stripe stripe = stripes[hash >>> (32 - STRIPE_BITS)];
+        synchronized (stripe) {
+            int index = stripe.find(key, hash);
+            return index < 0 ? null : (V) stripe.values[index];
+        }
+    }
+
+    /**
+     * @return the value previously mapped to key, or null
+     */
+    public V put(long key, V value) {
+        int hash = hash(key);
+        Stripe stripe = stripes[hash >>> (32 - STRIPE_BITS)];
+        synchronized (stripe) {
+            int index = stripe.find(key, hash);
+            if (index >= 0) {
+                V previous = (V) stripe.values[index];
+                stripe.values[index] = value;
+                return previous;
+            }
+            stripe.insert(key, hash, value);
+        }
+        size.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Remove key only while it still maps to value, so a stale owner can't remove a newer flow
+     * that reused the same key.
+     */
+    public boolean remove(long key, V value) {
+        int hash = hash(key);
+        Stripe stripe = stripes[hash >>> (32 - STRIPE_BITS)];
+        synchronized (stripe) {
+            int index = stripe.find(key, hash);
+            if (index < 0 || stripe.values[index] != value)
+                return false;
+            stripe.delete(index);
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    public V remove(long key) {
+        int hash = hash(key);
+        Stripe stripe = stripes[hash >>> (32 - STRIPE_BITS)];
+        V previous;
+        synchronized (stripe) {
+            int index = stripe.find(key, hash);
+            if (index < 0)
+                return null;
+            previous = (V) stripe.values[index];
+            stripe.delete(index);
+        }
+        size.decrementAndGet();
+        return previous;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Visit a snapshot of every entry, taken one stripe at a time. The visitor runs without any
+     * lock held and may modify the table.
+     */
+    public void forEach(Visitor<V> visitor) {
+        List<Object> snapshot = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            snapshot.clear();
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.values.length; i++) {
+                    Object value = stripe.values[i];
+                    if (value != null && value != TOMBSTONE) {
+                        snapshot.add(stripe.keys[i]);
+                        snapshot.add(value);
+                    }
+                }
+            }
+            for (int i = 0; i < snapshot.size(); i += 2)
+                visitor.visit((Long) snapshot.get(i), (V) snapshot.get(i + 1));
+        }
+    }
+
+    /**
+     * 64 bit finalizer from MurmurHash3, flow keys differ mostly in their low bits.
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static final class Stripe {
+        long[] keys;
+        Object[] values;
+        // Live entries plus tombstones, what the probe sequences see
+        int used;
+        int live;
+
+        Stripe(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        int find(long key, int hash) {
+            int mask = values.length - 1;
+            for (int index = hash & mask; ; index = (index + 1) & mask) {
+                Object value = values[index];
+                if (value == null)
+                    return -1;
+                if (value != TOMBSTONE && keys[index] == key)
+                    return index;
+            }
+        }
+
+        void insert(long key, int hash, Object value) {
+            if (used + 1 > values.length * LOAD_FACTOR)
+                rehash(live + 1 > values.length * LOAD_FACTOR / 2 ? values.length << 1 : values.length);
+            int mask = values.length - 1;
+            int index = hash & mask;
+            while (values[index] != null && values[index] != TOMBSTONE)
+                index = (index + 1) & mask;
+            if (values[index] == null)
+                used++;
+            keys[index] = key;
+            values[index] = value;
+            live++;
+        }
+
+        void delete(int index) {
+            values[index] = TOMBSTONE;
+            live--;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldValues.length; i++) {
+                Object value = oldValues[i];
+                if (value == null || value == TOMBSTONE)
+                    continue;
+                int index = hash(oldKeys[i]) & mask;
+                while (values[index] != null)
+                    index = (index + 1) & mask;
+                keys[index] = oldKeys[i];
+                values[index] = value;
+            }
+            used = live;
+        }
+    }
+}
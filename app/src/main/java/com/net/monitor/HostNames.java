@@ -0,0 +1,51 @@
+package com.net.monitor;
+
+import java.util.Map;
+
+/**
+ * Host names the device resolved, by IPv4 address, learned from the DNS answers that pass through
+ * {@link DnsCache}. Lets TCP flows be classified by host at SYN time, before any payload. An
+ * address several names resolved to, as is common behind CDNs, is not attributed to any of them.
+ */
+public class HostNames {
+    // Marks an address shared by several names
+    private static final String AMBIGUOUS = "";
+
+    private static final LRUCache<Integer, String> names = new LRUCache<>(VpnConfig.HOST_NAMES_SIZE,
+            new LRUCache.CleanupCallback<Integer, String>() {
+                @Override
+                public void cleanup(Map.Entry<Integer, String> eldest) {
+                    // Nothing to release
+                }
+            });
+
+    private HostNames() {
+    }
+
+    /**
+     * Remember the addresses of a parsed DNS response as its question's name
+     */
+    public static void record(DnsMessage response) {
+        if (response.addresses == null || response.addresses.length == 0)
+            return;
+        String name = DnsMessage.getName(response.key);
+        synchronized (names) {
+            for (int address : response.addresses) {
+                String previous = names.put(address, name);
+                if (previous != null && !previous.equals(name))
+                    names.put(address, AMBIGUOUS);
+            }
+        }
+    }
+
+    /**
+     * @return the one name address was resolved from, or null if unknown or ambiguous
+     */
+    public static String get(int address) {
+        String name;
+        synchronized (names) {
+            name = names.get(address);
+        }
+        return name == null || name == AMBIGUOUS ? null : name;
+    }
+}
@@ -0,0 +1,78 @@
+package com.net.monitor;
+
+import android.util.Log;
+
+import com.net.monitor.http.HttpRequest;
+import com.net.monitor.http.HttpRequestParser;
+import com.net.monitor.listener.IPayloadMonitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asks the monitors about one in-order device payload on the interception executor, so a slow
+ * monitor only holds back its own flow. The result is handed back to the owning shard, which
+ * alone touches the TCB, the payload buffer's ownership and the timer.
+ */
+public class InterceptDecision implements Runnable {
+    private static final String TAG = InterceptDecision.class.getSimpleName();
+
+    public interface Listener {
+        // Called on the owning shard
+        void onDecision(InterceptDecision decision);
+    }
+
+    public final TCB tcb;
+    // Pooled copy of the payload, released by the shard once the decision is back
+    public final ByteBuffer payload;
+    // Fires on the shard if the monitors take too long, see TCPOutput#processDecisionTimeout
+    public final TimingWheel.Timer timer = new TimingWheel.Timer(this);
+    // Mock response body, or null to send the payload upstream. Published by the task queue
+    public byte[] result;
+    // The payload looked like the start of an HTTP request to the shard
+    public final boolean httpHead;
+
+    private final SelectorTaskQueue shardTasks;
+    private final Listener listener;
+
+    /**
+     * @param shardTasks runs the listener on the owning shard
+     */
+    public InterceptDecision(TCB tcb, ByteBuffer payload, boolean httpHead,
+                             SelectorTaskQueue shardTasks, Listener listener) {
+        this.tcb = tcb;
+        this.payload = payload;
+        this.httpHead = httpHead;
+        this.shardTasks = shardTasks;
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            result = decide();
+        } catch (RuntimeException e) {
+            // A broken monitor lets the payload through
+            Log.e(TAG, "Monitor failed on " + TCB.TCBKey.toString(tcb.mTcbKey), e);
+        } finally {
+            shardTasks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onDecision(InterceptDecision.this);
+                }
+            });
+        }
+    }
+
+    private byte[] decide() {
+        VpnManager manager = VpnManager.getInstance();
+        if (httpHead && manager.hasHttpMonitor()) {
+            HttpRequest request = new HttpRequest();
+            if (HttpRequestParser.parse(payload, request) != HttpRequestParser.NOT_HTTP) {
+                byte[] response = manager.notify(request);
+                if (response != null)
+                    return response;
+            }
+        }
+        return manager.notify(tcb.mTcbKey, IPayloadMonitor.DIRECTION_TO_NETWORK, payload);
+    }
+}
@@ -19,6 +19,7 @@ package com.net.monitor;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.net.VpnService;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
@@ -26,6 +27,7 @@ import android.util.Log;
 import com.net.monitor.util.AppUtils;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -33,7 +35,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.Selector;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -51,13 +52,17 @@ public class LocalVPNService extends VpnService {
 
     private PendingIntent pendingIntent;
 
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue;
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue;
-    private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
+    private PacketQueue deviceToNetworkUDPQueue;
+    private PacketQueue networkToDeviceQueue;
     private ExecutorService executorService;
+    private VpnEngine vpnEngine;
+    private VpnRead vpnRead;
+    private VpnWrite vpnWrite;
 
     private Selector udpSelector;
-    private Selector tcpSelector;
+    private UDPNat udpNat;
+    private TCPEngine tcpEngine;
+    private DnsResolver dnsResolver;
 
     @Override
     public void onCreate() {
@@ -65,24 +70,47 @@ public class LocalVPNService extends VpnService {
         isRunning = true;
         setupVPN();
         try {
+            if (VpnConfig.BUFFER_POOL_PREWARM_BYTES > 0)
+                ByteBufferPool.prewarm(VpnConfig.BUFFER_POOL_PREWARM_BYTES);
             udpSelector = Selector.open();
-            tcpSelector = Selector.open();
-            deviceToNetworkUDPQueue = new ConcurrentLinkedQueue<>();
-            deviceToNetworkTCPQueue = new ConcurrentLinkedQueue<>();
-            networkToDeviceQueue = new ConcurrentLinkedQueue<>();
-
-            executorService = Executors.newFixedThreadPool(10);
-            executorService.submit(new UDPInput(networkToDeviceQueue, udpSelector));
-            executorService.submit(new UDPOutput(deviceToNetworkUDPQueue, udpSelector, this));
-            executorService.submit(new TCPInput(networkToDeviceQueue, tcpSelector));
-            for(int i = 0; i < VpnConfig.TCP_OUT_THREAD_NUM; i++) {
-                executorService.submit(new TCPOutput(deviceToNetworkTCPQueue, networkToDeviceQueue, tcpSelector, this));
+            SelectorTaskQueue udpSelectorTasks = new SelectorTaskQueue(udpSelector);
+            udpNat = new UDPNat(udpSelectorTasks, this);
+            VpnStats.setUdpNat(udpNat);
+            deviceToNetworkUDPQueue = new PacketQueue("udp-out", VpnConfig.UDP_QUEUE_CAPACITY,
+                    VpnConfig.DEVICE_TO_NETWORK_QUEUE_POLICY);
+            networkToDeviceQueue = new PacketQueue("to-device", VpnConfig.NETWORK_TO_DEVICE_QUEUE_CAPACITY,
+                    VpnConfig.NETWORK_TO_DEVICE_QUEUE_POLICY);
+            VpnStats.registerQueue(deviceToNetworkUDPQueue);
+            VpnStats.registerQueue(networkToDeviceQueue);
+            if (VpnConfig.DNS_CACHE_ENABLED) {
+                dnsResolver = new DnsResolver(networkToDeviceQueue, new File(getFilesDir(), VpnConfig.DNS_CACHE_FILE));
+                dnsResolver.load();
+                VpnStats.setDnsResolver(dnsResolver);
             }
-//            executorService.submit(new VpnRead(vpnInterface.getFileDescriptor(),
-//                    deviceToNetworkUDPQueue, deviceToNetworkTCPQueue));
-//            executorService.submit(new VpnWrite(vpnInterface.getFileDescriptor(), networkToDeviceQueue));
-            executorService.submit(new VpnRunable(vpnInterface.getFileDescriptor(),
-                    deviceToNetworkUDPQueue, deviceToNetworkTCPQueue, networkToDeviceQueue));
+
+            // One thread per pipeline stage, the count depends on the tun mode below
+            executorService = Executors.newCachedThreadPool();
+            executorService.submit(new UDPInput(networkToDeviceQueue, udpSelectorTasks, udpNat, dnsResolver));
+            executorService.submit(new UDPOutput(deviceToNetworkUDPQueue, udpNat, dnsResolver));
+            tcpEngine = new TCPEngine(VpnConfig.TCP_SHARD_NUM, networkToDeviceQueue, this);
+            tcpEngine.start(executorService);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && VpnConfig.TUN_FULL_DUPLEX) {
+                vpnRead = new VpnRead(vpnInterface.getFileDescriptor(),
+                        deviceToNetworkUDPQueue, tcpEngine);
+                vpnWrite = new VpnWrite(vpnInterface.getFileDescriptor(), networkToDeviceQueue);
+                executorService.submit(vpnRead);
+                executorService.submit(vpnWrite);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                vpnEngine = new VpnEngine(vpnInterface.getFileDescriptor(),
+                        deviceToNetworkUDPQueue, tcpEngine, networkToDeviceQueue);
+                executorService.submit(vpnEngine);
+            } else {
+                // No poll() on the tun before API 21, fall back to the sleep-polling loop
+                executorService.submit(new VpnRunable(vpnInterface.getFileDescriptor(),
+                        deviceToNetworkUDPQueue, tcpEngine, networkToDeviceQueue));
+            }
+            if (VpnConfig.STATS_INTERVAL_MS > 0)
+                executorService.submit(new VpnStats.Reporter(VpnConfig.STATS_INTERVAL_MS));
             LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_VPN_STATE).putExtra("running", true));
             Log.i(TAG, "Started");
         } catch (IOException e) {
@@ -97,6 +125,7 @@ public class LocalVPNService extends VpnService {
         if (vpnInterface == null) {
             Builder builder = new Builder();
             builder.addAddress(VPN_ADDRESS, 32);
+            builder.setMtu(VpnConfig.MTU);
 //            String[] ips = VpnConfig.VPN_ROUTE_LIST.split("\\|");
 //            for (String ip : ips) {
 //                builder.addRoute(ip, 32);
@@ -120,16 +149,36 @@ public class LocalVPNService extends VpnService {
         super.onDestroy();
         isRunning = false;
         executorService.shutdownNow();
+        if (vpnEngine != null)
+            vpnEngine.stop();
+        if (vpnRead != null)
+            vpnRead.stop();
+        if (vpnWrite != null)
+            vpnWrite.stop();
         cleanup();
         Log.i(TAG, "Stopped");
     }
 
     private void cleanup() {
-        deviceToNetworkTCPQueue = null;
         deviceToNetworkUDPQueue = null;
         networkToDeviceQueue = null;
+        VpnStats.clearQueues();
+        if (dnsResolver != null) {
+            dnsResolver.save();
+            VpnStats.setDnsResolver(null);
+            dnsResolver = null;
+        }
         ByteBufferPool.clear();
-        AppUtils.closeResources(udpSelector, tcpSelector, vpnInterface);
+        if (tcpEngine != null) {
+            tcpEngine.close();
+            tcpEngine = null;
+        }
+        if (udpNat != null) {
+            VpnStats.setUdpNat(null);
+            udpNat.close();
+            udpNat = null;
+        }
+        AppUtils.closeResources(udpSelector, vpnInterface);
     }
 
 }
@@ -21,305 +21,430 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 /**
- * Representation of an IP Packet
+ * Offset-based view of an IPv4 packet. Header fields are read from and written to the backing
+ * buffer directly, and {@link #wrap(ByteBuffer)} re-targets the view without allocating, so a
+ * thread keeps one instance and reuses it for every packet it handles.
+ * <p>
+ * Header templates ({@link #copyHeader()}) own a small heap buffer and are what connections keep
+ * around to build their responses from.
  */
-// TODO: Reduce public mutability
 public class Packet {
     public static final int IP4_HEADER_SIZE = 20;
     public static final int TCP_HEADER_SIZE = 20;
     public static final int UDP_HEADER_SIZE = 8;
 
-    public IP4Header ip4Header;
-    public TCPHeader tcpHeader;
-    public UDPHeader udpHeader;
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+
+    // Offsets relative to the start of the IP header
+    private static final int IP4_TOTAL_LENGTH = 2;
+    private static final int IP4_PROTOCOL = 9;
+    private static final int IP4_CHECKSUM = 10;
+    private static final int IP4_SOURCE_ADDRESS = 12;
+    private static final int IP4_DESTINATION_ADDRESS = 16;
+
+    // Offsets relative to the start of the transport header
+    private static final int SOURCE_PORT = 0;
+    private static final int DESTINATION_PORT = 2;
+    private static final int TCP_SEQUENCE_NUMBER = 4;
+    private static final int TCP_ACKNOWLEDGEMENT_NUMBER = 8;
+    private static final int TCP_DATA_OFFSET = 12;
+    private static final int TCP_FLAGS = 13;
+    private static final int TCP_WINDOW = 14;
+    private static final int TCP_CHECKSUM = 16;
+    private static final int TCP_URGENT_POINTER = 18;
+    private static final int TCP_OPTION_END = 0;
+    private static final int TCP_OPTION_NOP = 1;
+    private static final int TCP_OPTION_MSS = 2;
+    private static final int TCP_OPTION_WINDOW_SCALE = 3;
+    // RFC 7323 section 2.3
+    private static final int MAX_WINDOW_SCALE = 14;
+    private static final int SYN_OPTIONS_SIZE = 8;
+    private static final int UDP_LENGTH = 4;
+    private static final int UDP_CHECKSUM = 6;
+
     public ByteBuffer backingBuffer;
 
-    private boolean isTCP;
-    private boolean isUDP;
-
-    public Packet(ByteBuffer buffer) throws UnknownHostException {
-        this.ip4Header = new IP4Header(buffer);
-        if (this.ip4Header.protocol == IP4Header.TransportProtocol.TCP) {
-            this.tcpHeader = new TCPHeader(buffer);
-            this.isTCP = true;
-        } else if (ip4Header.protocol == IP4Header.TransportProtocol.UDP) {
-            this.udpHeader = new UDPHeader(buffer);
-            this.isUDP = true;
+    private int ipHeaderLength;
+    private int transportHeaderLength;
+    private int protocol;
+
+    // Checksum parts of the fields that stay the same in every packet built from this header,
+    // computed on first use and reset whenever the header changes
+    private boolean headerSumsValid;
+    private int ip4BaseChecksum;
+    private int tcpHeaderSum;
+
+    public Packet() {
+    }
+
+    public Packet(ByteBuffer buffer) {
+        wrap(buffer);
+    }
+
+    /**
+     * Point this view at a new packet whose IP header starts at index 0 of the buffer.
+     * Leaves the buffer position at the start of the payload.
+     */
+    public Packet wrap(ByteBuffer buffer) {
+        backingBuffer = buffer;
+        headerSumsValid = false;
+        protocol = 0;
+        ipHeaderLength = 0;
+        transportHeaderLength = 0;
+
+        int limit = buffer.limit();
+        if (limit < IP4_HEADER_SIZE || (buffer.get(0) & 0xF0) != 0x40)
+            return this;
+        ipHeaderLength = (buffer.get(0) & 0x0F) << 2;
+        int protocolNumber = buffer.get(IP4_PROTOCOL) & 0xFF;
+        if (protocolNumber == PROTOCOL_TCP && limit >= ipHeaderLength + TCP_HEADER_SIZE) {
+            transportHeaderLength = (buffer.get(ipHeaderLength + TCP_DATA_OFFSET) & 0xF0) >> 2;
+        } else if (protocolNumber == PROTOCOL_UDP && limit >= ipHeaderLength + UDP_HEADER_SIZE) {
+            transportHeaderLength = UDP_HEADER_SIZE;
+        } else {
+            return this;
+        }
+        if (limit < ipHeaderLength + transportHeaderLength) {
+            transportHeaderLength = 0;
+            return this;
         }
-        this.backingBuffer = buffer;
+        protocol = protocolNumber;
+        buffer.position(ipHeaderLength + transportHeaderLength);
+        return this;
+    }
+
+    /**
+     * Copy the IP and transport headers (without options) into a new, independent packet.
+     * This is the only allocating operation and is meant to be done once per flow.
+     */
+    public Packet copyHeader() {
+        int headerLength = IP4_HEADER_SIZE + (isTCP() ? TCP_HEADER_SIZE : UDP_HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength);
+        copyHeaderTo(buffer);
+        buffer.limit(headerLength);
+        return new Packet(buffer);
     }
 
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("Packet{");
-        sb.append("ip4Header=").append(ip4Header);
-        if (isTCP) sb.append(", tcpHeader=").append(tcpHeader);
-        else if (isUDP) sb.append(", udpHeader=").append(udpHeader);
-        if (null != backingBuffer) {
-            sb.append(", payloadSize=").append(backingBuffer.limit() - backingBuffer.position());
+        sb.append("protocol=").append(backingBuffer.limit() >= IP4_HEADER_SIZE ? backingBuffer.get(IP4_PROTOCOL) & 0xFF : -1);
+        if (ipHeaderLength > 0) {
+            sb.append(", sourceAddress=").append(intToIp(getSourceAddress()));
+            sb.append(", destinationAddress=").append(intToIp(getDestinationAddress()));
+            sb.append(", totalLength=").append(getTotalLength());
         }
+        if (isTCP() || isUDP()) {
+            sb.append(", sourcePort=").append(getSourcePort());
+            sb.append(", destinationPort=").append(getDestinationPort());
+        }
+        if (isTCP()) {
+            sb.append(", sequenceNumber=").append(getSequenceNumber());
+            sb.append(", acknowledgementNumber=").append(getAcknowledgementNumber());
+            sb.append(", window=").append(getWindow());
+            sb.append(", flags=");
+            if (isFIN()) sb.append(" FIN");
+            if (isSYN()) sb.append(" SYN");
+            if (isRST()) sb.append(" RST");
+            if (isPSH()) sb.append(" PSH");
+            if (isACK()) sb.append(" ACK");
+            if (isURG()) sb.append(" URG");
+        }
+        sb.append(", payloadSize=").append(getPayloadSize());
         sb.append('}');
         return sb.toString();
     }
 
     public boolean isTCP() {
-        return isTCP;
+        return protocol == PROTOCOL_TCP;
     }
 
     public boolean isUDP() {
-        return isUDP;
+        return protocol == PROTOCOL_UDP;
+    }
+
+    public int getHeaderLength() {
+        return ipHeaderLength + transportHeaderLength;
+    }
+
+    public int getPayloadSize() {
+        return backingBuffer.limit() - getHeaderLength();
     }
 
     public byte[] getPayload() {
-        int payloadSize = backingBuffer.limit() - backingBuffer.position();
-        backingBuffer.mark();
+        int payloadSize = getPayloadSize();
         byte payload[] = new byte[payloadSize];
-        backingBuffer.get(payload, 0, payloadSize);
-        backingBuffer.reset();
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = backingBuffer.get(getHeaderLength() + i);
         return payload;
     }
 
-    public void swapSourceAndDestination() {
-        InetAddress newSourceAddress = ip4Header.destinationAddress;
-        ip4Header.destinationAddress = ip4Header.sourceAddress;
-        ip4Header.sourceAddress = newSourceAddress;
-
-        if (isUDP) {
-            int newSourcePort = udpHeader.destinationPort;
-            udpHeader.destinationPort = udpHeader.sourcePort;
-            udpHeader.sourcePort = newSourcePort;
-        } else if (isTCP) {
-            int newSourcePort = tcpHeader.destinationPort;
-            tcpHeader.destinationPort = tcpHeader.sourcePort;
-            tcpHeader.sourcePort = newSourcePort;
-        }
+    public int getTotalLength() {
+        return backingBuffer.getShort(IP4_TOTAL_LENGTH) & 0xFFFF;
     }
 
-    /**
-     * 将当前packet(this)的各种信息复制给参数buffer指定的buffer中,然后修改相关的参数
-     *
-     * @param buffer
-     * @param flags
-     * @param sequenceNum
-     * @param ackNum
-     * @param payloadSize
-     */
+    public int getSourceAddress() {
+        return backingBuffer.getInt(IP4_SOURCE_ADDRESS);
+    }
 
-    public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize) {
-        buffer.position(0);
-        fillHeader(buffer);
-        backingBuffer = buffer;
+    public int getDestinationAddress() {
+        return backingBuffer.getInt(IP4_DESTINATION_ADDRESS);
+    }
 
-        tcpHeader.flags = flags;
-        backingBuffer.put(IP4_HEADER_SIZE + 13, flags);
+    public int getSourcePort() {
+        return backingBuffer.getShort(ipHeaderLength + SOURCE_PORT) & 0xFFFF;
+    }
 
-        tcpHeader.sequenceNumber = sequenceNum;
-        backingBuffer.putInt(IP4_HEADER_SIZE + 4, (int) sequenceNum);
+    public int getDestinationPort() {
+        return backingBuffer.getShort(ipHeaderLength + DESTINATION_PORT) & 0xFFFF;
+    }
 
-        tcpHeader.acknowledgementNumber = ackNum;
-        backingBuffer.putInt(IP4_HEADER_SIZE + 8, (int) ackNum);
+    public long getSequenceNumber() {
+        return backingBuffer.getInt(ipHeaderLength + TCP_SEQUENCE_NUMBER) & 0xFFFFFFFFL;
+    }
 
-        // Reset header size, since we don't need options
-        byte dataOffset = (byte) (TCP_HEADER_SIZE << 2);
-        tcpHeader.dataOffsetAndReserved = dataOffset;
-        backingBuffer.put(IP4_HEADER_SIZE + 12, dataOffset);
+    public long getAcknowledgementNumber() {
+        return backingBuffer.getInt(ipHeaderLength + TCP_ACKNOWLEDGEMENT_NUMBER) & 0xFFFFFFFFL;
+    }
 
-        updateTCPChecksum(payloadSize);
+    public int getFlags() {
+        return backingBuffer.get(ipHeaderLength + TCP_FLAGS) & 0xFF;
+    }
 
-        int ip4TotalLength = IP4_HEADER_SIZE + TCP_HEADER_SIZE + payloadSize;
-        backingBuffer.putShort(2, (short) ip4TotalLength);
-        ip4Header.totalLength = ip4TotalLength;
+    public int getWindow() {
+        return backingBuffer.getShort(ipHeaderLength + TCP_WINDOW) & 0xFFFF;
+    }
 
-        updateIP4Checksum();
+    public boolean isFIN() {
+        return (getFlags() & TCPHeader.FIN) != 0;
     }
 
-    public void updateUDPBuffer(ByteBuffer buffer, int payloadSize) {
-        buffer.position(0);
-        fillHeader(buffer);
-        backingBuffer = buffer;
+    public boolean isSYN() {
+        return (getFlags() & TCPHeader.SYN) != 0;
+    }
 
-        int udpTotalLength = UDP_HEADER_SIZE + payloadSize;
-        backingBuffer.putShort(IP4_HEADER_SIZE + 4, (short) udpTotalLength);
-        udpHeader.length = udpTotalLength;
+    public boolean isRST() {
+        return (getFlags() & TCPHeader.RST) != 0;
+    }
 
-        // Disable UDP checksum validation
-        backingBuffer.putShort(IP4_HEADER_SIZE + 6, (short) 0);
-        udpHeader.checksum = 0;
+    public boolean isPSH() {
+        return (getFlags() & TCPHeader.PSH) != 0;
+    }
 
-        int ip4TotalLength = IP4_HEADER_SIZE + udpTotalLength;
-        backingBuffer.putShort(2, (short) ip4TotalLength);
-        ip4Header.totalLength = ip4TotalLength;
+    public boolean isACK() {
+        return (getFlags() & TCPHeader.ACK) != 0;
+    }
 
-        updateIP4Checksum();
+    public boolean isURG() {
+        return (getFlags() & TCPHeader.URG) != 0;
     }
 
-    private void updateIP4Checksum() {
-        ByteBuffer buffer = backingBuffer.duplicate();
-        buffer.position(0);
+    /**
+     * Maximum segment size announced in the TCP options (normally only on SYN), or 0 if absent
+     */
+    public int getMaxSegmentSize() {
+        int offset = findTCPOption(TCP_OPTION_MSS, 4);
+        return offset < 0 ? 0 : backingBuffer.getShort(offset + 2) & 0xFFFF;
+    }
 
-        // Clear previous checksum
-        buffer.putShort(10, (short) 0);
+    /**
+     * Window scale shift announced in the TCP options (only valid on SYN), or -1 if absent
+     */
+    public int getWindowScale() {
+        int offset = findTCPOption(TCP_OPTION_WINDOW_SCALE, 3);
+        return offset < 0 ? -1 : Math.min(backingBuffer.get(offset + 2) & 0xFF, MAX_WINDOW_SCALE);
+    }
 
-        int ipLength = ip4Header.headerLength;
-        int sum = 0;
-        while (ipLength > 0) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            ipLength -= 2;
+    /**
+     * @return absolute offset of the first option of the given kind and length, or -1
+     */
+    private int findTCPOption(int kind, int optionLength) {
+        if (!isTCP())
+            return -1;
+        int offset = ipHeaderLength + TCP_HEADER_SIZE;
+        int end = ipHeaderLength + transportHeaderLength;
+        while (offset < end) {
+            int currentKind = backingBuffer.get(offset) & 0xFF;
+            if (currentKind == TCP_OPTION_END)
+                break;
+            if (currentKind == TCP_OPTION_NOP) {
+                offset++;
+                continue;
+            }
+            if (offset + 1 >= end)
+                break;
+            int length = backingBuffer.get(offset + 1) & 0xFF;
+            if (length < 2 || offset + length > end)
+                break;
+            if (currentKind == kind && length == optionLength)
+                return offset;
+            offset += length;
         }
-        while (sum >> 16 > 0)
-            sum = (sum & 0xFFFF) + (sum >> 16);
-
-        sum = ~sum;
-        ip4Header.headerChecksum = sum;
-        backingBuffer.putShort(10, (short) sum);
+        return -1;
     }
 
-    private void updateTCPChecksum(int payloadSize) {
-        int sum = 0;
-        int tcpLength = TCP_HEADER_SIZE + payloadSize;
-
-        // Calculate pseudo-header checksum
-        ByteBuffer buffer = ByteBuffer.wrap(ip4Header.sourceAddress.getAddress());
-        sum = BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
-
-        buffer = ByteBuffer.wrap(ip4Header.destinationAddress.getAddress());
-        sum += BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
-
-        sum += IP4Header.TransportProtocol.TCP.getNumber() + tcpLength;
-
-        buffer = backingBuffer.duplicate();
-        // Clear previous checksum
-        buffer.putShort(IP4_HEADER_SIZE + 16, (short) 0);
-
-        // Calculate TCP segment checksum
-        buffer.position(IP4_HEADER_SIZE);
-        while (tcpLength > 1) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            tcpLength -= 2;
+    public void swapSourceAndDestination() {
+        headerSumsValid = false;
+        int newSourceAddress = getDestinationAddress();
+        backingBuffer.putInt(IP4_DESTINATION_ADDRESS, getSourceAddress());
+        backingBuffer.putInt(IP4_SOURCE_ADDRESS, newSourceAddress);
+
+        if (isUDP() || isTCP()) {
+            int newSourcePort = getDestinationPort();
+            backingBuffer.putShort(ipHeaderLength + DESTINATION_PORT, (short) getSourcePort());
+            backingBuffer.putShort(ipHeaderLength + SOURCE_PORT, (short) newSourcePort);
         }
-        if (tcpLength > 0)
-            sum += BitUtils.getUnsignedByte(buffer.get()) << 8;
-
-        while (sum >> 16 > 0)
-            sum = (sum & 0xFFFF) + (sum >> 16);
-
-        sum = ~sum;
-        tcpHeader.checksum = sum;
-        backingBuffer.putShort(IP4_HEADER_SIZE + 16, (short) sum);
     }
 
-    private void fillHeader(ByteBuffer buffer) {
-        ip4Header.fillHeader(buffer);
-        if (isUDP)
-            udpHeader.fillHeader(buffer);
-        else if (isTCP)
-            tcpHeader.fillHeader(buffer);
+    /**
+     * 将当前packet(this)的头部复制到参数buffer指定的buffer中,然后修改相关的参数.
+     * buffer的position停在payload的起始位置.
+     *
+     * @param buffer
+     * @param flags
+     * @param sequenceNum
+     * @param ackNum
+     * @param payloadSize
+     */
+    public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize) {
+        updateTCPBuffer(buffer, flags, sequenceNum, ackNum, payloadSize,
+                Checksum.pseudoHeaderSum(getSourceAddress(), getDestinationAddress(), PROTOCOL_TCP));
     }
 
-    public static class IP4Header {
-        public byte version;
-        public byte IHL;
-        public int headerLength;
-        public short typeOfService;
-        public int totalLength;
-
-        public int identificationAndFlagsAndFragmentOffset;
-
-        public short TTL;
-        private short protocolNum;
-        public TransportProtocol protocol;
-        public int headerChecksum;
-
-        public InetAddress sourceAddress;
-        public InetAddress destinationAddress;
-
-        public int optionsAndPadding;
-
-        private enum TransportProtocol {
-            TCP(6),
-            UDP(17),
-            Other(0xFF);
+    /**
+     * Same as {@link #updateTCPBuffer(ByteBuffer, byte, long, long, int)}, with the pseudo-header
+     * sum precomputed by the caller (see {@link TCB#pseudoHeaderSum}). Only the payload is summed
+     * in full, everything else comes from cached partial sums.
+     */
+    public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize,
+                                int pseudoHeaderSum) {
+        prepareHeaderSums();
+        copyHeaderTo(buffer);
 
-            private int protocolNumber;
+        buffer.put(IP4_HEADER_SIZE + TCP_FLAGS, flags);
+        buffer.putInt(IP4_HEADER_SIZE + TCP_SEQUENCE_NUMBER, (int) sequenceNum);
+        buffer.putInt(IP4_HEADER_SIZE + TCP_ACKNOWLEDGEMENT_NUMBER, (int) ackNum);
 
-            TransportProtocol(int protocolNumber) {
-                this.protocolNumber = protocolNumber;
-            }
+        // Reset header size, since we don't need options
+        buffer.put(IP4_HEADER_SIZE + TCP_DATA_OFFSET, (byte) (TCP_HEADER_SIZE << 2));
 
-            private static TransportProtocol numberToEnum(int protocolNumber) {
-                if (protocolNumber == 6)
-                    return TCP;
-                else if (protocolNumber == 17)
-                    return UDP;
-                else
-                    return Other;
-            }
+        int tcpLength = TCP_HEADER_SIZE + payloadSize;
+        int sum = pseudoHeaderSum + tcpLength + tcpHeaderSum + (flags & 0xFF)
+                + Checksum.sum32(sequenceNum) + Checksum.sum32(ackNum)
+                + Checksum.sum(buffer, IP4_HEADER_SIZE + TCP_HEADER_SIZE, payloadSize);
+        buffer.putShort(IP4_HEADER_SIZE + TCP_CHECKSUM, Checksum.finish(sum));
+
+        int ip4TotalLength = IP4_HEADER_SIZE + tcpLength;
+        buffer.putShort(IP4_TOTAL_LENGTH, (short) ip4TotalLength);
+        buffer.putShort(IP4_CHECKSUM, (short) Checksum.update(ip4BaseChecksum, 0, ip4TotalLength));
+    }
 
-            public int getNumber() {
-                return this.protocolNumber;
-            }
+    /**
+     * Build a SYN-ACK carrying the MSS option and, if windowScale is not negative, a window scale
+     * option (only allowed when the SYN had one). Leaves the buffer position after the options.
+     */
+    public void updateSynAckBuffer(ByteBuffer buffer, long sequenceNum, long ackNum, int maxSegmentSize,
+                                   int windowScale, int pseudoHeaderSum) {
+        // Options are written where the payload would go and summed as such, then the data offset
+        // is fixed up incrementally
+        int options = IP4_HEADER_SIZE + TCP_HEADER_SIZE;
+        buffer.put(options, (byte) TCP_OPTION_MSS);
+        buffer.put(options + 1, (byte) 4);
+        buffer.putShort(options + 2, (short) maxSegmentSize);
+        if (windowScale < 0) {
+            buffer.putInt(options + 4, 0x01010101); // NOP padding
+        } else {
+            buffer.put(options + 4, (byte) TCP_OPTION_NOP);
+            buffer.put(options + 5, (byte) TCP_OPTION_WINDOW_SCALE);
+            buffer.put(options + 6, (byte) 3);
+            buffer.put(options + 7, (byte) windowScale);
         }
+        byte flags = (byte) (TCPHeader.SYN | TCPHeader.ACK);
+        updateTCPBuffer(buffer, flags, sequenceNum, ackNum, SYN_OPTIONS_SIZE, pseudoHeaderSum);
+
+        int oldWord = (TCP_HEADER_SIZE << 2) << 8 | (flags & 0xFF);
+        int newWord = ((TCP_HEADER_SIZE + SYN_OPTIONS_SIZE) << 2) << 8 | (flags & 0xFF);
+        buffer.put(IP4_HEADER_SIZE + TCP_DATA_OFFSET, (byte) ((TCP_HEADER_SIZE + SYN_OPTIONS_SIZE) << 2));
+        int checksum = buffer.getShort(IP4_HEADER_SIZE + TCP_CHECKSUM) & 0xFFFF;
+        buffer.putShort(IP4_HEADER_SIZE + TCP_CHECKSUM, (short) Checksum.update(checksum, oldWord, newWord));
+        buffer.position(options + SYN_OPTIONS_SIZE);
+    }
 
-        private IP4Header(ByteBuffer buffer) throws UnknownHostException {
-            byte versionAndIHL = buffer.get();
-            this.version = (byte) (versionAndIHL >> 4);
-            this.IHL = (byte) (versionAndIHL & 0x0F);
-            this.headerLength = this.IHL << 2;
-
-            this.typeOfService = BitUtils.getUnsignedByte(buffer.get());
-            this.totalLength = BitUtils.getUnsignedShort(buffer.getShort());
-
-            this.identificationAndFlagsAndFragmentOffset = buffer.getInt();
+    public void updateUDPBuffer(ByteBuffer buffer, int payloadSize) {
+        prepareHeaderSums();
+        copyHeaderTo(buffer);
 
-            this.TTL = BitUtils.getUnsignedByte(buffer.get());
-            this.protocolNum = BitUtils.getUnsignedByte(buffer.get());
-            this.protocol = TransportProtocol.numberToEnum(protocolNum);
-            this.headerChecksum = BitUtils.getUnsignedShort(buffer.getShort());
+        int udpTotalLength = UDP_HEADER_SIZE + payloadSize;
+        buffer.putShort(IP4_HEADER_SIZE + UDP_LENGTH, (short) udpTotalLength);
 
-            byte[] addressBytes = new byte[4];
-            buffer.get(addressBytes, 0, 4);
-            this.sourceAddress = InetAddress.getByAddress(addressBytes);
+        // Disable UDP checksum validation
+        buffer.putShort(IP4_HEADER_SIZE + UDP_CHECKSUM, (short) 0);
 
-            buffer.get(addressBytes, 0, 4);
-            this.destinationAddress = InetAddress.getByAddress(addressBytes);
+        int ip4TotalLength = IP4_HEADER_SIZE + udpTotalLength;
+        buffer.putShort(IP4_TOTAL_LENGTH, (short) ip4TotalLength);
+        buffer.putShort(IP4_CHECKSUM, (short) Checksum.update(ip4BaseChecksum, 0, ip4TotalLength));
+    }
 
-            //this.optionsAndPadding = buffer.getInt();
+    /**
+     * Cache the checksum of the option-less IP header with a zero total length, and the partial
+     * sum of the TCP fields that are copied unchanged (ports, window, urgent pointer, data offset).
+     * Per packet only the varying words are then added in.
+     */
+    private void prepareHeaderSums() {
+        if (headerSumsValid)
+            return;
+        // Word 0 as written by copyHeaderTo, words 1 (total length) and 5 (checksum) left out
+        int sum = 0x4500 | (backingBuffer.get(1) & 0xFF);
+        for (int i = 4; i < IP4_HEADER_SIZE; i += 2) {
+            if (i != IP4_CHECKSUM)
+                sum += backingBuffer.getShort(i) & 0xFFFF;
         }
-
-        public void fillHeader(ByteBuffer buffer) {
-            buffer.put((byte) (this.version << 4 | this.IHL));
-            buffer.put((byte) this.typeOfService);
-            buffer.putShort((short) this.totalLength);
-
-            buffer.putInt(this.identificationAndFlagsAndFragmentOffset);
-
-            buffer.put((byte) this.TTL);
-            buffer.put((byte) this.protocol.getNumber());
-            buffer.putShort((short) this.headerChecksum);
-
-            buffer.put(this.sourceAddress.getAddress());
-            buffer.put(this.destinationAddress.getAddress());
+        ip4BaseChecksum = Checksum.finish(sum) & 0xFFFF;
+
+        if (isTCP()) {
+            tcpHeaderSum = Checksum.fold((backingBuffer.getShort(ipHeaderLength + SOURCE_PORT) & 0xFFFF)
+                    + (backingBuffer.getShort(ipHeaderLength + DESTINATION_PORT) & 0xFFFF)
+                    + (backingBuffer.getShort(ipHeaderLength + TCP_WINDOW) & 0xFFFF)
+                    + (backingBuffer.getShort(ipHeaderLength + TCP_URGENT_POINTER) & 0xFFFF)
+                    + ((TCP_HEADER_SIZE << 2) << 8));
         }
+        headerSumsValid = true;
+    }
 
-        @Override
-        public String toString() {
-            final StringBuilder sb = new StringBuilder("IP4Header{");
-            sb.append("version=").append(version);
-            sb.append(", IHL=").append(IHL);
-            sb.append(", typeOfService=").append(typeOfService);
-            sb.append(", totalLength=").append(totalLength);
-            sb.append(", identificationAndFlagsAndFragmentOffset=").append(identificationAndFlagsAndFragmentOffset);
-            sb.append(", TTL=").append(TTL);
-            sb.append(", protocol=").append(protocolNum).append(":").append(protocol);
-            sb.append(", headerChecksum=").append(headerChecksum);
-            sb.append(", sourceAddress=").append(sourceAddress.getHostAddress());
-            sb.append(", destinationAddress=").append(destinationAddress.getHostAddress());
-            sb.append('}');
-            return sb.toString();
+    /**
+     * Write an option-less copy of the IP and transport headers at the start of buffer and leave
+     * the buffer position right after them.
+     */
+    private void copyHeaderTo(ByteBuffer buffer) {
+        int transportLength = isTCP() ? TCP_HEADER_SIZE : UDP_HEADER_SIZE;
+        buffer.position(0);
+        if (backingBuffer.hasArray() && ipHeaderLength == IP4_HEADER_SIZE) {
+            buffer.put(backingBuffer.array(), backingBuffer.arrayOffset(), IP4_HEADER_SIZE + transportLength);
+        } else {
+            for (int i = 0; i < IP4_HEADER_SIZE; i++)
+                buffer.put(backingBuffer.get(i));
+            for (int i = 0; i < transportLength; i++)
+                buffer.put(backingBuffer.get(ipHeaderLength + i));
+            // IP options were dropped
+            buffer.put(0, (byte) 0x45);
         }
+        // So were TCP options
+        if (isTCP())
+            buffer.put(IP4_HEADER_SIZE + TCP_DATA_OFFSET, (byte) (TCP_HEADER_SIZE << 2));
+    }
+
+    public static InetAddress intToInetAddress(int address) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address});
     }
 
-    public static class TCPHeader {
+    public static String intToIp(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "."
+                + ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    public static final class TCPHeader {
         public static final int FIN = 0x01;
         public static final int SYN = 0x02;
         public static final int RST = 0x04;
@@ -327,151 +452,7 @@ public class Packet {
         public static final int ACK = 0x10;
         public static final int URG = 0x20;
 
-        public int sourcePort;
-        public int destinationPort;
-
-        public long sequenceNumber;
-        public long acknowledgementNumber;
-
-        public byte dataOffsetAndReserved;
-        public int headerLength;
-        public byte flags;
-        public int window;
-
-        public int checksum;
-        public int urgentPointer;
-
-        public byte[] optionsAndPadding;
-
-        private TCPHeader(ByteBuffer buffer) {
-            this.sourcePort = BitUtils.getUnsignedShort(buffer.getShort());
-            this.destinationPort = BitUtils.getUnsignedShort(buffer.getShort());
-
-            this.sequenceNumber = BitUtils.getUnsignedInt(buffer.getInt());
-            this.acknowledgementNumber = BitUtils.getUnsignedInt(buffer.getInt());
-
-            this.dataOffsetAndReserved = buffer.get();
-            this.headerLength = (this.dataOffsetAndReserved & 0xF0) >> 2;
-            this.flags = buffer.get();
-            this.window = BitUtils.getUnsignedShort(buffer.getShort());
-
-            this.checksum = BitUtils.getUnsignedShort(buffer.getShort());
-            this.urgentPointer = BitUtils.getUnsignedShort(buffer.getShort());
-
-            int optionsLength = this.headerLength - TCP_HEADER_SIZE;
-            if (optionsLength > 0) {
-                optionsAndPadding = new byte[optionsLength];
-                buffer.get(optionsAndPadding, 0, optionsLength);
-            }
-        }
-
-        public boolean isFIN() {
-            return (flags & FIN) == FIN;
-        }
-
-        public boolean isSYN() {
-            return (flags & SYN) == SYN;
-        }
-
-        public boolean isRST() {
-            return (flags & RST) == RST;
-        }
-
-        public boolean isPSH() {
-            return (flags & PSH) == PSH;
-        }
-
-        public boolean isACK() {
-            return (flags & ACK) == ACK;
-        }
-
-        public boolean isURG() {
-            return (flags & URG) == URG;
-        }
-
-        private void fillHeader(ByteBuffer buffer) {
-            buffer.putShort((short) sourcePort);
-            buffer.putShort((short) destinationPort);
-
-            buffer.putInt((int) sequenceNumber);
-            buffer.putInt((int) acknowledgementNumber);
-
-            buffer.put(dataOffsetAndReserved);
-            buffer.put(flags);
-            buffer.putShort((short) window);
-
-            buffer.putShort((short) checksum);
-            buffer.putShort((short) urgentPointer);
-        }
-
-        @Override
-        public String toString() {
-            final StringBuilder sb = new StringBuilder("TCPHeader{");
-            sb.append("sourcePort=").append(sourcePort);
-            sb.append(", destinationPort=").append(destinationPort);
-            sb.append(", sequenceNumber=").append(sequenceNumber);
-            sb.append(", acknowledgementNumber=").append(acknowledgementNumber);
-            sb.append(", headerLength=").append(headerLength);
-            sb.append(", window=").append(window);
-            sb.append(", checksum=").append(checksum);
-            sb.append(", flags=");
-            if (isFIN()) sb.append(" FIN");
-            if (isSYN()) sb.append(" SYN");
-            if (isRST()) sb.append(" RST");
-            if (isPSH()) sb.append(" PSH");
-            if (isACK()) sb.append(" ACK");
-            if (isURG()) sb.append(" URG");
-            sb.append('}');
-            return sb.toString();
-        }
-    }
-
-    public static class UDPHeader {
-        public int sourcePort;
-        public int destinationPort;
-
-        public int length;
-        public int checksum;
-
-        private UDPHeader(ByteBuffer buffer) {
-            this.sourcePort = BitUtils.getUnsignedShort(buffer.getShort());
-            this.destinationPort = BitUtils.getUnsignedShort(buffer.getShort());
-
-            this.length = BitUtils.getUnsignedShort(buffer.getShort());
-            this.checksum = BitUtils.getUnsignedShort(buffer.getShort());
-        }
-
-        private void fillHeader(ByteBuffer buffer) {
-            buffer.putShort((short) this.sourcePort);
-            buffer.putShort((short) this.destinationPort);
-
-            buffer.putShort((short) this.length);
-            buffer.putShort((short) this.checksum);
-        }
-
-        @Override
-        public String toString() {
-            final StringBuilder sb = new StringBuilder("UDPHeader{");
-            sb.append("sourcePort=").append(sourcePort);
-            sb.append(", destinationPort=").append(destinationPort);
-            sb.append(", length=").append(length);
-            sb.append(", checksum=").append(checksum);
-            sb.append('}');
-            return sb.toString();
-        }
-    }
-
-    private static class BitUtils {
-        private static short getUnsignedByte(byte value) {
-            return (short) (value & 0xFF);
-        }
-
-        private static int getUnsignedShort(short value) {
-            return value & 0xFFFF;
-        }
-
-        private static long getUnsignedInt(int value) {
-            return value & 0xFFFFFFFFL;
+        private TCPHeader() {
         }
     }
 }
@@ -0,0 +1,210 @@
+package com.net.monitor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of packet buffers between two pipeline stages, waking its consumer when a buffer
+ * is offered. What happens to producers once it fills up is decided by its {@link Policy}.
+ */
+public class PacketQueue {
+    public enum Policy {
+        // Producer waits until the consumer has drained the queue to the low watermark
+        BLOCK,
+        // Buffer is released back to the pool and counted as dropped
+        DROP_NEWEST,
+        // Offers always succeed, producers are expected to stop reading upstream between the
+        // high and low watermarks (see isPaused() and addResumeListener()). Capacity is only a
+        // soft bound here, used for nothing but reporting.
+        PAUSE,
+    }
+
+    public interface Consumer {
+        // Called from the producing thread, must be cheap and never block
+        void wakeup();
+    }
+
+    private final String name;
+    private final int capacity;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final Policy policy;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() is O(n)
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile Consumer consumer;
+
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private final CopyOnWriteArrayList<Consumer> resumeListeners = new CopyOnWriteArrayList<>();
+    // Threads waiting in BLOCK offers or awaitResume(), guarded by lock
+    private final Object lock = new Object();
+    private volatile int waiters;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+    private volatile int maxOccupancy;
+
+    /**
+     * Queue with watermarks at a quarter and three quarters of its capacity
+     */
+    public PacketQueue(String name, int capacity, Policy policy) {
+        this(name, capacity, capacity / 4, capacity * 3 / 4, policy);
+    }
+
+    public PacketQueue(String name, int capacity, int lowWatermark, int highWatermark, Policy policy) {
+        if (capacity <= 0 || lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > capacity)
+            throw new IllegalArgumentException("Bad queue bounds " + lowWatermark + "/" + highWatermark + "/" + capacity);
+        this.name = name;
+        this.capacity = capacity;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.policy = policy;
+    }
+
+    public void setConsumer(Consumer consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Register a callback for when a paused queue drains to its low watermark. Like
+     * {@link Consumer#wakeup()} it runs on the consuming thread and must not block.
+     */
+    public void addResumeListener(Consumer listener) {
+        resumeListeners.add(listener);
+    }
+
+    /**
+     * Takes ownership of the buffer, also when it ends up dropped.
+     *
+     * @return false if the buffer was dropped
+     */
+    public boolean offer(ByteBuffer buffer) {
+        // Several producers may pass this check at once, so the bound can be exceeded by at
+        // most one buffer per producer thread
+        if (count.get() >= capacity && policy != Policy.PAUSE) {
+            if (policy == Policy.DROP_NEWEST || !awaitBelow(capacity)) {
+                dropped.incrementAndGet();
+                ByteBufferPool.release(buffer);
+                return false;
+            }
+        }
+
+        ByteBufferPool.touch(buffer, name);
+        queue.offer(buffer);
+        int size = count.incrementAndGet();
+        if (size > maxOccupancy)
+            maxOccupancy = size;
+        if (size >= highWatermark && paused.compareAndSet(false, true))
+            pauses.incrementAndGet();
+
+        Consumer consumer = this.consumer;
+        if (consumer != null)
+            consumer.wakeup();
+        return true;
+    }
+
+    public ByteBuffer poll() {
+        ByteBuffer buffer = queue.poll();
+        if (buffer != null && count.decrementAndGet() <= lowWatermark)
+            onLowWatermark();
+        return buffer;
+    }
+
+    private void onLowWatermark() {
+        if (paused.compareAndSet(true, false)) {
+            for (Consumer listener : resumeListeners)
+                listener.wakeup();
+        }
+        if (waiters > 0) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Block the calling thread while the queue is paused, for producers with nothing else to do
+     *
+     * @return false if interrupted
+     */
+    public boolean awaitResume() {
+        if (!paused.get())
+            return true;
+        synchronized (lock) {
+            waiters++;
+            try {
+                while (paused.get())
+                    lock.wait();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    private boolean awaitBelow(int limit) {
+        synchronized (lock) {
+            waiters++;
+            try {
+                while (count.get() >= limit)
+                    lock.wait();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Whether producers should stop reading upstream, between crossing the high watermark and
+     * draining back to the low one
+     */
+    public boolean isPaused() {
+        return paused.get();
+    }
+
+    public boolean isEmpty() {
+        return count.get() == 0;
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getPauses() {
+        return pauses.get();
+    }
+
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + count.get() + "/" + capacity + " (max " + maxOccupancy + ", dropped "
+                + dropped.get() + ", paused " + pauses.get() + ")";
+    }
+}
@@ -0,0 +1,55 @@
+package com.net.monitor;
+
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands channel registrations and interest changes to the thread that owns a selector, instead of
+ * calling register() from another thread while it may be blocked in select(). Producers never
+ * take the selector lock, and the selector is woken once per batch of tasks or packets.
+ */
+public class SelectorTaskQueue implements PacketQueue.Consumer {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    public SelectorTaskQueue(Selector selector) {
+        this.selector = selector;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Run task on the selector thread before its next select()
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        wakeup();
+    }
+
+    @Override
+    public void wakeup() {
+        if (wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    /**
+     * Called by the selector thread at the top of its loop, before it checks for other work and
+     * selects. Whatever is queued after this wakes the next select().
+     *
+     * @return the number of tasks run
+     */
+    public int runPending() {
+        wakeupPending.set(false);
+        int count = 0;
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+            count++;
+        }
+        return count;
+    }
+}
@@ -17,16 +17,18 @@
 package com.net.monitor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayDeque;
+
+import com.net.monitor.listener.IFlowClassifier;
 
 /**
  * Transmission Control Block
  */
 public class TCB {
-    public TCBKey mTcbKey;
+    public long mTcbKey;
 
     public long mySequenceNum, theirSequenceNum;
     public long myAcknowledgementNum, theirAcknowledgementNum;
@@ -40,35 +42,77 @@ public class TCB {
         ESTABLISHED,
         CLOSE_WAIT,
         LAST_ACK,
+        // Closed, kept around for a while to answer retransmitted FINs
+        TIME_WAIT,
+    }
+
+    // Whether the device sends HTTP on this flow, decided by its first payload
+    public enum HttpState {
+        UNKNOWN,
+        HTTP,
+        NOT_HTTP,
     }
 
     public SocketChannel socketChannel;
     public Packet referencePacket;
+    public HttpState httpState = HttpState.UNKNOWN;
+    // IFlowClassifier verdict of the monitors, decided once when the SYN arrived
+    public int verdict = IFlowClassifier.PASSTHROUGH;
+    // Pseudo-header partial sum of the segments we send to the device, see Checksum
+    public final int pseudoHeaderSum;
+    // Largest payload per segment sent to the device: the MSS of its SYN, capped by the tun MTU
+    public int maxSegmentSize = DEFAULT_MSS;
     public boolean waitingForNetworkData;
+    // Receive window the device advertised, already scaled, and the shift to apply to its ACKs
+    public int sendWindow;
+    public int sendWindowScale;
+    // OP_READ was dropped because the device window is full
+    public boolean readPaused;
     public SelectionKey selectionKey;
+    // Out-of-order device segments, created on the first gap
+    public TCPReassembly reassembly;
+    // Device payload the socket has not accepted yet, written in order before any newer segment
+    public final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    // Bytes left in pendingWrites, see isWriteBacklogFull()
+    public int pendingWriteBytes;
+    // Interception decision in progress. Device data behind it is acknowledged but parked, in
+    // order, until the decision is back or timed out
+    public InterceptDecision pendingDecision;
+    public final ArrayDeque<ByteBuffer> parkedSegments = new ArrayDeque<>();
+    public int parkedBytes;
+    // Mock and status responses still waiting for room in the device window, sent before any
+    // further upstream data and before our FIN, see TCPOutput#flushDeviceBacklog
+    public final ArrayDeque<ByteBuffer> deviceBacklog = new ArrayDeque<>();
+    // The device's FIN arrived behind the pending decision, see TCPOutput#processFIN
+    public boolean finParked;
+    public long parkedFinSequenceNum;
 
-    private static final int MAX_CACHE_SIZE = 50; // XXX: Is this ideal?
-    private static LRUCache<TCBKey, TCB> tcbCache =
-            new LRUCache<>(MAX_CACHE_SIZE, new LRUCache.CleanupCallback<String, TCB>() {
-                @Override
-                public void cleanup(Map.Entry<String, TCB> eldest) {
-                    eldest.getValue().closeChannel();
-                }
-            });
-
-    public static TCB getTCB(TCBKey tcbKey) {
-        synchronized (tcbCache) {
-            return tcbCache.get(tcbKey);
-        }
+    // Last time a packet of this flow was looked up, in TimingWheel.nowMillis() time
+    public volatile long lastActiveTime;
+    // SYN, idle, close or TIME_WAIT timeout depending on status, driven by the owning shard
+    public final TimingWheel.Timer timer = new TimingWheel.Timer(this);
+    private TimingWheel timingWheel;
+
+    public static final int DEFAULT_MSS = VpnConfig.MTU - Packet.IP4_HEADER_SIZE - Packet.TCP_HEADER_SIZE;
+    private static final FlowTable<TCB> tcbCache = new FlowTable<>(VpnConfig.TCP_MAX_FLOWS);
+
+    public static TCB getTCB(long tcbKey) {
+        TCB tcb = tcbCache.get(tcbKey);
+        if (tcb != null)
+            tcb.lastActiveTime = TimingWheel.nowMillis();
+        return tcb;
     }
 
-    public static void putTCB(TCBKey tcbKey, TCB tcb) {
-        synchronized (tcbCache) {
-            tcbCache.put(tcbKey, tcb);
-        }
+    public static void putTCB(long tcbKey, TCB tcb) {
+        tcb.lastActiveTime = TimingWheel.nowMillis();
+        tcbCache.put(tcbKey, tcb);
+    }
+
+    public static int getFlowCount() {
+        return tcbCache.size();
     }
 
-    public TCB(TCBKey tcbKey, long mySequenceNum, long theirSequenceNum, long myAcknowledgementNum, long theirAcknowledgementNum, SocketChannel socketChannel, Packet referencePacket) {
+    public TCB(long tcbKey, long mySequenceNum, long theirSequenceNum, long myAcknowledgementNum, long theirAcknowledgementNum, SocketChannel socketChannel, Packet referencePacket) {
         this.mTcbKey = tcbKey;
 
         this.mySequenceNum = mySequenceNum;
@@ -77,28 +121,164 @@ public class TCB {
         this.theirAcknowledgementNum = theirAcknowledgementNum;
         this.socketChannel = socketChannel;
         this.referencePacket = referencePacket;
+        this.pseudoHeaderSum = Checksum.pseudoHeaderSum(referencePacket.getSourceAddress(),
+                referencePacket.getDestinationAddress(), Packet.PROTOCOL_TCP);
+    }
+
+    /**
+     * Build a segment of this connection into buffer, see {@link Packet#updateTCPBuffer}.
+     */
+    public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize) {
+        referencePacket.updateTCPBuffer(buffer, flags, sequenceNum, ackNum, payloadSize, pseudoHeaderSum);
+    }
+
+    public TCPReassembly getReassembly() {
+        if (reassembly == null)
+            reassembly = new TCPReassembly();
+        return reassembly;
+    }
+
+    /**
+     * Bytes sent to the device that it has not acknowledged yet
+     */
+    public int bytesInFlight() {
+        return (int) ((mySequenceNum - theirAcknowledgementNum) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Room left in the device window
+     */
+    public int sendWindowRemaining() {
+        return sendWindow - bytesInFlight();
+    }
+
+    /**
+     * Track the acknowledgement and window of a segment from the device, resuming socket reads
+     * once the window has room again.
+     */
+    public void onDeviceAck(Packet packet) {
+        if (!packet.isACK())
+            return;
+        long ackNum = packet.getAcknowledgementNumber();
+        // Ignore stale ACKs from before the last one we saw
+        if ((int) (ackNum - theirAcknowledgementNum) < 0)
+            return;
+        theirAcknowledgementNum = ackNum;
+        sendWindow = packet.getWindow() << sendWindowScale;
+        if (readPaused && sendWindowRemaining() > 0) {
+            readPaused = false;
+            setInterest(SelectionKey.OP_READ, true);
+        }
+    }
+
+    /**
+     * Write device payload to the socket behind any data still pending. Whatever the socket does
+     * not take now is copied and queued, and OP_WRITE is armed to flush it.
+     */
+    public void writeToNetwork(ByteBuffer payload) throws IOException {
+        if (pendingWrites.isEmpty())
+            socketChannel.write(payload);
+        if (payload.hasRemaining()) {
+            ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+            copy.put(payload);
+            copy.flip();
+            pendingWrites.offer(copy);
+            pendingWriteBytes += copy.remaining();
+            setInterest(SelectionKey.OP_WRITE, true);
+        }
+    }
+
+    /**
+     * Whether size more bytes would take the pending writes past
+     * {@link VpnConfig#TCP_MAX_PENDING_WRITE_BYTES}. With nothing pending the data goes straight
+     * to the socket, so the backlog never exceeds the cap by more than one segment.
+     */
+    public boolean isWriteBacklogFull(int size) {
+        return pendingWriteBytes > 0 && pendingWriteBytes + size > VpnConfig.TCP_MAX_PENDING_WRITE_BYTES;
+    }
+
+    /**
+     * Flush pending writes on OP_WRITE, disarming it once everything is written.
+     */
+    public void flushPendingWrites() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = pendingWrites.peek()) != null) {
+            pendingWriteBytes -= socketChannel.write(buffer);
+            if (buffer.hasRemaining())
+                return;
+            pendingWrites.poll();
+        }
+        setInterest(SelectionKey.OP_WRITE, false);
+    }
+
+    /**
+     * Arm or disarm one interest op without touching the others
+     */
+    public void setInterest(int op, boolean enabled) {
+        if (selectionKey == null || !selectionKey.isValid())
+            return;
+        int ops = selectionKey.interestOps();
+        selectionKey.interestOps(enabled ? ops | op : ops & ~op);
+    }
+
+    /**
+     * Build our SYN-ACK into buffer, announcing the tun MSS and, when the device asked for window
+     * scaling, a shift of 0 for our own window so that its shift takes effect.
+     */
+    public void updateSynAckBuffer(ByteBuffer buffer) {
+        referencePacket.updateSynAckBuffer(buffer, mySequenceNum, myAcknowledgementNum, DEFAULT_MSS,
+                sendWindowScale > 0 ? 0 : -1, pseudoHeaderSum);
+    }
+
+    /**
+     * (Re)arm the flow's only timer on the owning shard's wheel
+     */
+    public void scheduleTimeout(TimingWheel wheel, long delayMillis) {
+        timingWheel = wheel;
+        wheel.schedule(timer, delayMillis);
     }
 
     public static void closeTCB(TCB tcb) {
-        tcb.closeChannel();
-        synchronized (tcbCache) {
-            tcbCache.remove(tcb.mTcbKey);
+        if (tcb.timingWheel != null) {
+            tcb.timingWheel.cancel(tcb.timer);
+            if (tcb.pendingDecision != null)
+                tcb.timingWheel.cancel(tcb.pendingDecision.timer);
         }
+        // A decision still running is released by the shard once it is back
+        tcb.pendingDecision = null;
+        ByteBuffer segment;
+        while ((segment = tcb.parkedSegments.poll()) != null)
+            ByteBufferPool.release(segment);
+        tcb.parkedBytes = 0;
+        tcb.deviceBacklog.clear();
+        release(tcb);
+    }
+
+    private static void release(TCB tcb) {
+        tcb.closeChannel();
+        if (tcb.reassembly != null)
+            tcb.reassembly.clear();
+        tcbCache.remove(tcb.mTcbKey, tcb);
     }
 
+    /**
+     * Close every flow on shutdown. Runs outside the shards, so their wheels are left alone.
+     */
     public static void closeAll() {
-        synchronized (tcbCache) {
-            Iterator<Map.Entry<TCBKey, TCB>> it = tcbCache.entrySet().iterator();
-            while (it.hasNext()) {
-                it.next().getValue().closeChannel();
-                it.remove();
+        tcbCache.forEach(new FlowTable.Visitor<TCB>() {
+            @Override
+            public void visit(long key, TCB tcb) {
+                release(tcb);
             }
-        }
+        });
     }
 
-    private void closeChannel() {
+    /**
+     * Close the socket but keep the flow in the table, see {@link TCBStatus#TIME_WAIT}
+     */
+    public void closeChannel() {
         try {
-            if (selectionKey != null) {
+            if (socketChannel != null) {
                 socketChannel.close();
             }
         } catch (IOException e) {
@@ -106,47 +286,35 @@ public class TCB {
         }
     }
 
+    /**
+     * Flow keys are packed into a long: destination address, destination port, source port
+     */
     public static class TCBKey {
-        String mDestinationAddress;
-        int mDestinationPort;
-        int mSourcePort;
-
-        public TCBKey(String mDestinationAddress, int mDestinationPort, int mSourcePort) {
-            this.mDestinationAddress = mDestinationAddress;
-            this.mDestinationPort = mDestinationPort;
-            this.mSourcePort = mSourcePort;
+        private TCBKey() {
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            TCBKey tcbKey = (TCBKey) o;
+        public static long pack(int destinationAddress, int destinationPort, int sourcePort) {
+            return (destinationAddress & 0xFFFFFFFFL) << 32 | (destinationPort & 0xFFFF) << 16 | (sourcePort & 0xFFFF);
+        }
 
-            if (mDestinationPort != tcbKey.mDestinationPort) return false;
-            if (mSourcePort != tcbKey.mSourcePort) return false;
-            return mDestinationAddress != null ? mDestinationAddress.equals(tcbKey.mDestinationAddress) : tcbKey.mDestinationAddress == null;
+        public static int getDestinationAddress(long key) {
+            return (int) (key >>> 32);
+        }
 
+        public static int getDestinationPort(long key) {
+            return (int) (key >>> 16) & 0xFFFF;
         }
 
-        @Override
-        public int hashCode() {
-            int result = mDestinationAddress != null ? mDestinationAddress.hashCode() : 0;
-            result = 31 * result + mDestinationPort;
-            result = 31 * result + mSourcePort;
-            return result;
+        public static int getSourcePort(long key) {
+            return (int) key & 0xFFFF;
         }
 
-        @Override
-        public String toString() {
+        public static String toString(long key) {
             return "TCBKey{" +
-                    "mDestinationAddress='" + mDestinationAddress + '\'' +
-                    ", mDestinationPort=" + mDestinationPort +
-                    ", mSourcePort=" + mSourcePort +
+                    "mDestinationAddress='" + Packet.intToIp(getDestinationAddress(key)) + '\'' +
+                    ", mDestinationPort=" + getDestinationPort(key) +
+                    ", mSourcePort=" + getSourcePort(key) +
                     '}';
         }
     }
-
-
 }
@@ -0,0 +1,63 @@
+package com.net.monitor;
+
+import com.net.monitor.util.AppUtils;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes device TCP packets to a fixed set of {@link TCPShard}s by flow hash, so every packet of
+ * a connection is handled in order by the same thread.
+ */
+public class TCPEngine {
+    private final TCPShard[] shards;
+    // Shared by the shards for interception decisions, see InterceptDecision
+    private final ThreadPoolExecutor interceptExecutor = new ThreadPoolExecutor(
+            VpnConfig.INTERCEPT_THREADS, VpnConfig.INTERCEPT_THREADS, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(VpnConfig.INTERCEPT_QUEUE_CAPACITY));
+
+    public TCPEngine(int shardCount, PacketQueue networkToDeviceQueue, LocalVPNService vpnService)
+            throws IOException {
+        shards = new TCPShard[Math.max(1, shardCount)];
+        try {
+            for (int i = 0; i < shards.length; i++)
+                shards[i] = new TCPShard(i, networkToDeviceQueue, interceptExecutor, vpnService);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public void start(ExecutorService executorService) {
+        for (TCPShard shard : shards)
+            executorService.submit(shard);
+    }
+
+    /**
+     * Hand the packet's buffer to the shard owning its flow. The packet must already be wrapped.
+     */
+    public void dispatch(Packet packet) {
+        long key = TCB.TCBKey.pack(packet.getDestinationAddress(),
+                packet.getDestinationPort(), packet.getSourcePort());
+        shardFor(key).getInQueue().offer(packet.backingBuffer);
+    }
+
+    private TCPShard shardFor(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return shards[(int) ((key & Long.MAX_VALUE) % shards.length)];
+    }
+
+    public void close() {
+        interceptExecutor.shutdownNow();
+        TCB.closeAll();
+        for (TCPShard shard : shards) {
+            if (shard != null)
+                AppUtils.closeResources(shard.getSelector());
+        }
+    }
+}
@@ -23,124 +23,232 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.net.monitor.TCB.TCBStatus;
+import com.net.monitor.listener.IFlowClassifier;
+import com.net.monitor.listener.IPayloadMonitor;
 
-public class TCPInput implements Runnable {
+/**
+ * Socket -> device half of a {@link TCPShard}
+ */
+public class TCPInput {
     private static final String TAG = TCPInput.class.getSimpleName();
     public static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
 
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
-    private Selector selector;
+    // Socket bytes per scatter read at most, split into MSS-sized segments
+    private static final int READ_SIZE = 16384;
+    private static final int MAX_SEGMENTS_PER_READ = 32;
 
-    public TCPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector) {
+    private PacketQueue outputQueue;
+    private Selector selector;
+    private TimingWheel timingWheel;
+    private final ByteBuffer[] readBuffers = new ByteBuffer[MAX_SEGMENTS_PER_READ];
+    // Flows whose reads were paused because the device queue is above its high watermark
+    private final Set<TCB> queuePausedFlows = new HashSet<>();
+    // Segments queued during the current processSelectedKeys()
+    private int wakeupPackets;
+
+    public TCPInput(PacketQueue outputQueue, Selector selector, TimingWheel timingWheel) {
         this.outputQueue = outputQueue;
         this.selector = selector;
+        this.timingWheel = timingWheel;
     }
 
-    @Override
-    public void run() {
-        try {
-            Log.d(TAG, "Started");
-            while (!Thread.interrupted()) {
-                int readyChannels = selector.select();
-
-                if (readyChannels == 0) {
-                    Thread.sleep(10);
-                    continue;
-                }
-
-                Set<SelectionKey> keys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = keys.iterator();
-
-                while (keyIterator.hasNext() && !Thread.interrupted()) {
-                    SelectionKey key = keyIterator.next();
-                    if (key.isValid()) {
-                        if (key.isConnectable())
-                            processConnect(key, keyIterator);
-                        else if (key.isReadable())
-                            processInput(key, keyIterator);
-                    }
-                }
+    /**
+     * Handle the keys selected by the owning shard's last select()
+     *
+     * @return packets queued towards the device
+     */
+    public int processSelectedKeys() {
+        wakeupPackets = 0;
+        Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+        while (keyIterator.hasNext()) {
+            SelectionKey key = keyIterator.next();
+            keyIterator.remove();
+            if (key.isValid() && key.isConnectable())
+                processConnect(key);
+            if (key.isValid() && key.isWritable())
+                processWrite(key);
+            if (key.isValid() && key.isReadable())
+                processInput(key);
+        }
+        return wakeupPackets;
+    }
+
+    public boolean hasQueuePausedFlows() {
+        return !queuePausedFlows.isEmpty();
+    }
+
+    /**
+     * Re-arm reads of the flows paused by a full device queue, once it has drained
+     */
+    public void resumeQueuePausedFlows() {
+        for (TCB tcb : queuePausedFlows) {
+            if (tcb.readPaused) {
+                tcb.readPaused = false;
+                tcb.setInterest(SelectionKey.OP_READ, true);
             }
-        } catch (InterruptedException e) {
-            Log.i(TAG, "Stopping");
-        } catch (IOException e) {
-            Log.w(TAG, e.toString(), e);
         }
+        queuePausedFlows.clear();
     }
 
-    private void processConnect(SelectionKey key, Iterator<SelectionKey> keyIterator) {
+    private void processConnect(SelectionKey key) {
         TCB tcb = (TCB) key.attachment();
-        Packet referencePacket = tcb.referencePacket;
         try {
             if (tcb.socketChannel.finishConnect()) {
-                keyIterator.remove();
                 tcb.status = TCBStatus.SYN_RECEIVED;
-                ByteBuffer responseBuffer = ByteBufferPool.acquire();
-                referencePacket.updateTCPBuffer(responseBuffer, (byte) (Packet.TCPHeader.SYN | Packet.TCPHeader.ACK),
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                ByteBuffer responseBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+                tcb.updateSynAckBuffer(responseBuffer);
                 outputQueue.offer(responseBuffer);
                 tcb.mySequenceNum++; // SYN counts as a byte
                 key.interestOps(SelectionKey.OP_READ);
             }
         } catch (IOException e) {
-            Log.e(TAG, "Connection error: " + tcb.mTcbKey, e);
-            ByteBuffer responseBuffer = ByteBufferPool.acquire();
-            referencePacket.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+            Log.e(TAG, "Connection error: " + TCB.TCBKey.toString(tcb.mTcbKey), e);
+            ByteBuffer responseBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+            tcb.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
             outputQueue.offer(responseBuffer);
             TCB.closeTCB(tcb);
         }
     }
 
-    private void processInput(SelectionKey key, Iterator<SelectionKey> keyIterator) {
-        keyIterator.remove();
-        ByteBuffer receiveBuffer = ByteBufferPool.acquire();
-        // Leave space for the header
-        receiveBuffer.position(HEADER_SIZE);
+    private void processWrite(SelectionKey key) {
+        TCB tcb = (TCB) key.attachment();
+        try {
+            tcb.flushPendingWrites();
+        } catch (IOException e) {
+            Log.e(TAG, "Network write error: " + TCB.TCBKey.toString(tcb.mTcbKey), e);
+            ByteBuffer responseBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+            tcb.updateTCPBuffer(responseBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+            outputQueue.offer(responseBuffer);
+            TCB.closeTCB(tcb);
+        }
+    }
 
+    /**
+     * Drain the socket in successive scatter reads until it is empty or the per-key budget is
+     * spent, so a backlog doesn't cost one select() per read
+     */
+    private void processInput(SelectionKey key) {
         TCB tcb = (TCB) key.attachment();
-        synchronized (tcb) {
-            Packet referencePacket = tcb.referencePacket;
-            SocketChannel inputChannel = (SocketChannel) key.channel();
-            int readBytes;
-            try {
-                readBytes = inputChannel.read(receiveBuffer);
-            } catch (Exception e) {
-                Log.e(TAG, "Network read error: " + tcb.mTcbKey, e);
-                Log.d("chenlongrcv", "Network read error: " + tcb.mTcbKey, e);
-                referencePacket.updateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
-                outputQueue.offer(receiveBuffer);
-                TCB.closeTCB(tcb);
-                return;
+        int budget = VpnConfig.TCP_READ_BUDGET;
+        while (budget > 0) {
+            int readBytes = readSegments(key, tcb, budget);
+            if (readBytes <= 0)
+                break;
+            budget -= readBytes;
+        }
+    }
+
+    /**
+     * One scatter read of at most maxBytes, queued towards the device as segments
+     *
+     * @return the bytes read if the read was filled and the socket may hold more, otherwise 0
+     */
+    private int readSegments(SelectionKey key, TCB tcb, int maxBytes) {
+        if (outputQueue.isPaused()) {
+            tcb.readPaused = true;
+            tcb.setInterest(SelectionKey.OP_READ, false);
+            queuePausedFlows.add(tcb);
+            return 0;
+        }
+
+        // A mock response waiting for the device window goes out first, TCPOutput resumes reads
+        if (!tcb.deviceBacklog.isEmpty()) {
+            tcb.readPaused = true;
+            tcb.setInterest(SelectionKey.OP_READ, false);
+            return 0;
+        }
+
+        // Never read more than the device window can take, the rest stays in the socket buffer
+        // and the server sees our receive window close
+        int readSize = Math.min(Math.min(READ_SIZE, maxBytes), tcb.sendWindowRemaining());
+        if (readSize <= 0) {
+            tcb.readPaused = true;
+            tcb.setInterest(SelectionKey.OP_READ, false);
+            return 0;
+        }
+
+        // Scatter one socket read over MSS-sized segment buffers, each with room for its header
+        int segments = Math.min(MAX_SEGMENTS_PER_READ, (readSize + tcb.maxSegmentSize - 1) / tcb.maxSegmentSize);
+        for (int i = 0; i < segments; i++) {
+            ByteBuffer receiveBuffer = ByteBufferPool.acquire(HEADER_SIZE + tcb.maxSegmentSize);
+            receiveBuffer.position(HEADER_SIZE);
+            receiveBuffer.limit(HEADER_SIZE + Math.min(tcb.maxSegmentSize, readSize - i * tcb.maxSegmentSize));
+            readBuffers[i] = receiveBuffer;
+        }
+
+        SocketChannel inputChannel = (SocketChannel) key.channel();
+        long readBytes;
+        try {
+            readBytes = inputChannel.read(readBuffers, 0, segments);
+        } catch (Exception e) {
+            Log.e(TAG, "Network read error: " + TCB.TCBKey.toString(tcb.mTcbKey), e);
+            Log.d("chenlongrcv", "Network read error: " + TCB.TCBKey.toString(tcb.mTcbKey), e);
+            ByteBuffer receiveBuffer = readBuffers[0];
+            releaseReadBuffers(1, segments);
+            tcb.updateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+            outputQueue.offer(receiveBuffer);
+            TCB.closeTCB(tcb);
+            return 0;
+        }
+
+        if (readBytes == -1) {
+            ByteBuffer receiveBuffer = readBuffers[0];
+            releaseReadBuffers(1, segments);
+            // End of stream, stop waiting until we push more data
+            tcb.setInterest(SelectionKey.OP_READ, false);
+            tcb.waitingForNetworkData = false;
+
+            if (tcb.status != TCBStatus.CLOSE_WAIT) {
+                ByteBufferPool.release(receiveBuffer);
+                return 0;
             }
 
-            if (readBytes == -1) {
-                // End of stream, stop waiting until we push more data
-                key.interestOps(0);
-                tcb.waitingForNetworkData = false;
-
-                if (tcb.status != TCBStatus.CLOSE_WAIT) {
-                    ByteBufferPool.release(receiveBuffer);
-                    return;
-                }
-
-                tcb.status = TCBStatus.LAST_ACK;
-                referencePacket.updateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.FIN, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
-                tcb.mySequenceNum++; // FIN counts as a byte
-            } else {
-                // XXX: We should ideally be splitting segments by MTU/MSS, but this seems to work without
-
-                referencePacket.updateTCPBuffer(receiveBuffer, (byte) (Packet.TCPHeader.PSH | Packet.TCPHeader.ACK),
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, readBytes);
-                tcb.mySequenceNum += readBytes; // Next sequence number
-                receiveBuffer.position(HEADER_SIZE + readBytes);
+            tcb.status = TCBStatus.LAST_ACK;
+            tcb.updateTCPBuffer(receiveBuffer, (byte) Packet.TCPHeader.FIN, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+            tcb.mySequenceNum++; // FIN counts as a byte
+            tcb.scheduleTimeout(timingWheel, VpnConfig.TCP_CLOSE_TIMEOUT_MS);
+            outputQueue.offer(receiveBuffer);
+            wakeupPackets++;
+            return 0;
+        }
+
+        int filled = 0;
+        while (filled < segments && readBuffers[filled].position() > HEADER_SIZE)
+            filled++;
+        boolean monitored = tcb.verdict != IFlowClassifier.PASSTHROUGH && VpnManager.getInstance().hasPayloadMonitor();
+        for (int i = 0; i < filled; i++) {
+            ByteBuffer receiveBuffer = readBuffers[i];
+            readBuffers[i] = null;
+            int payloadSize = receiveBuffer.position() - HEADER_SIZE;
+            if (monitored) {
+                receiveBuffer.limit(HEADER_SIZE + payloadSize);
+                receiveBuffer.position(HEADER_SIZE);
+                VpnManager.getInstance().notify(tcb.mTcbKey, IPayloadMonitor.DIRECTION_TO_DEVICE, receiveBuffer);
             }
+            // Only the last segment of the read gets PSH
+            byte flags = (byte) (i == filled - 1
+                    ? Packet.TCPHeader.PSH | Packet.TCPHeader.ACK : Packet.TCPHeader.ACK);
+            tcb.updateTCPBuffer(receiveBuffer, flags, tcb.mySequenceNum, tcb.myAcknowledgementNum, payloadSize);
+            tcb.mySequenceNum += payloadSize; // Next sequence number
+            receiveBuffer.position(HEADER_SIZE + payloadSize);
+            outputQueue.offer(receiveBuffer);
+        }
+        wakeupPackets += filled;
+        releaseReadBuffers(filled, segments);
+        // A short read means the socket buffer is empty
+        return readBytes == readSize ? readSize : 0;
+    }
+
+    private void releaseReadBuffers(int from, int to) {
+        for (int i = from; i < to; i++) {
+            ByteBufferPool.release(readBuffers[i]);
+            readBuffers[i] = null;
         }
-        outputQueue.offer(receiveBuffer);
     }
 
 }
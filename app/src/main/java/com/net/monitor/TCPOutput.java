@@ -19,250 +19,540 @@ package com.net.monitor;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Random;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.net.monitor.Packet.TCPHeader;
-import com.net.monitor.Packet.IP4Header;
 import com.net.monitor.TCB.TCBStatus;
-
-public class TCPOutput implements Runnable {
+import com.net.monitor.http.HttpRequest;
+import com.net.monitor.http.HttpRequestParser;
+import com.net.monitor.listener.IFlowClassifier;
+
+/**
+ * Device -> socket half of a {@link TCPShard}. Payloads the monitors want to see are decided on
+ * an {@link InterceptDecision} executor, so only their own flow waits for the answer.
+ */
+public class TCPOutput implements InterceptDecision.Listener {
     private static final String TAG = TCPOutput.class.getSimpleName();
 
     private LocalVPNService mVpnService;
-    private ConcurrentLinkedQueue<Packet> mDeviceToNetWorksPackets;
-    private ConcurrentLinkedQueue<ByteBuffer> mNetworksToDevicePacketBytes;
+    private PacketQueue mNetworksToDevicePacketBytes;
     private Selector mSelector;
+    private TimingWheel mTimingWheel;
+    private SelectorTaskQueue mSelectorTasks;
+    private Executor mInterceptExecutor;
 
     private Random mRandom = new Random();
-
-    public TCPOutput(ConcurrentLinkedQueue<Packet> outQueue, ConcurrentLinkedQueue<ByteBuffer> inQueue,
-                     Selector selector, LocalVPNService vpnService) {
-        this.mDeviceToNetWorksPackets = outQueue;
+    // Reused for every packet handled by this thread
+    private final Packet mPacket = new Packet();
+    private final HttpRequest mHttpRequest = new HttpRequest();
+
+    /**
+     * @param selectorTasks      the owning shard's, decisions complete through it
+     * @param interceptExecutor  runs interception decisions, shared by the shards
+     */
+    public TCPOutput(PacketQueue inQueue, Selector selector, TimingWheel timingWheel, SelectorTaskQueue selectorTasks,
+                     Executor interceptExecutor, LocalVPNService vpnService) {
         this.mNetworksToDevicePacketBytes = inQueue;
         this.mSelector = selector;
+        this.mTimingWheel = timingWheel;
+        this.mSelectorTasks = selectorTasks;
+        this.mInterceptExecutor = interceptExecutor;
         this.mVpnService = vpnService;
     }
 
-    @Override
-    public void run() {
-        Log.i(TAG, "Starting");
+    /**
+     * Handle one packet from the device. Takes ownership of the buffer.
+     */
+    public void processPacket(ByteBuffer payloadBuffer) throws IOException {
+        ByteBuffer responseBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
         try {
-            Thread currentThread = Thread.currentThread();
-            while (true) {
-                Packet currentOutPacket;
-                do {
-                    currentOutPacket = mDeviceToNetWorksPackets.poll();
-                    if (currentOutPacket != null)
-                        break;
-                    Thread.sleep(10);
-                } while (!currentThread.isInterrupted());
-
-                if (currentThread.isInterrupted())
-                    break;
-                ByteBuffer responseBuffer = ByteBufferPool.acquire();
-                ByteBuffer payloadBuffer = currentOutPacket.backingBuffer;
-                currentOutPacket.backingBuffer = null;
-                TCPHeader tcpHeader = currentOutPacket.tcpHeader;
-                TCB.TCBKey tcbKey = new TCB.TCBKey(currentOutPacket.ip4Header.destinationAddress.getHostAddress(), tcpHeader.destinationPort, tcpHeader.sourcePort);
-                TCB tcb = TCB.getTCB(tcbKey);
-                if (tcb == null) {
+            Packet currentOutPacket = mPacket.wrap(payloadBuffer);
+            long tcbKey = TCB.TCBKey.pack(currentOutPacket.getDestinationAddress(),
+                    currentOutPacket.getDestinationPort(), currentOutPacket.getSourcePort());
+            TCB tcb = TCB.getTCB(tcbKey);
+            if (tcb != null && tcb.status == TCBStatus.TIME_WAIT) {
+                tcb = processTimeWait(tcb, currentOutPacket, responseBuffer);
+                if (tcb == null)
                     initializeConnection(tcbKey, currentOutPacket, responseBuffer);
-                } else if (tcpHeader.isSYN()) {
-                    processDuplicateSYN(tcb, tcpHeader, responseBuffer);
-                } else if (tcpHeader.isRST()) { ////服务器端口为开(服务端),请求超时(客户端)
-                    closeCleanly(tcb, responseBuffer);
-                } else if (tcpHeader.isFIN()) {
-                    processFIN(tcb, tcpHeader, responseBuffer);
-                } else if (tcpHeader.isACK()) {
-                    processACK(tcb, tcpHeader, payloadBuffer, responseBuffer);
-                }
-
-                if (responseBuffer.position() == 0) {
-                    ByteBufferPool.release(responseBuffer);
-                }
-                ByteBufferPool.release(payloadBuffer);
+            } else if (tcb == null) {
+                initializeConnection(tcbKey, currentOutPacket, responseBuffer);
+            } else if (currentOutPacket.isSYN()) {
+                processDuplicateSYN(tcb, currentOutPacket, responseBuffer);
+            } else if (currentOutPacket.isRST()) { ////服务器端口为开(服务端),请求超时(客户端)
+                TCB.closeTCB(tcb);
+            } else if (currentOutPacket.isFIN()) {
+                processFIN(tcb, currentOutPacket, responseBuffer);
+            } else if (currentOutPacket.isACK()) {
+                processACK(tcb, currentOutPacket, payloadBuffer, responseBuffer);
             }
-        } catch (InterruptedException e) {
-            Log.i(TAG, "Stopping");
-        } catch (Exception e) {
-            Log.e(TAG, e.toString(), e);
         } finally {
-            TCB.closeAll();
+            if (responseBuffer.position() == 0) {
+                ByteBufferPool.release(responseBuffer);
+            }
+            ByteBufferPool.release(payloadBuffer);
         }
     }
 
-    private void initializeConnection(TCB.TCBKey tcbKey, Packet currentOutPacket, ByteBuffer responseBuffer)
+    private void initializeConnection(long tcbKey, Packet currentOutPacket, ByteBuffer responseBuffer)
             throws IOException {
 
-        TCPHeader tcpHeader = currentOutPacket.tcpHeader;
-        IP4Header ip4Header = currentOutPacket.ip4Header;
-
-        InetAddress destinationAddress =  ip4Header.destinationAddress;
-        int destinationPort = tcpHeader.destinationPort;
+        int destinationAddress = currentOutPacket.getDestinationAddress();
+        int destinationPort = currentOutPacket.getDestinationPort();
+        long sequenceNumber = currentOutPacket.getSequenceNumber();
+        int maxSegmentSize = currentOutPacket.getMaxSegmentSize();
+        int windowScale = currentOutPacket.getWindowScale();
+        int window = currentOutPacket.getWindow();
         currentOutPacket.swapSourceAndDestination();
-        if (tcpHeader.isSYN()) {
-            SocketChannel outputChannel = SocketChannel.open();
-            outputChannel.configureBlocking(false);
-            mVpnService.protect(outputChannel.socket());
+        // Beyond the flow cap new connections are refused, existing ones are never evicted
+        if (currentOutPacket.isSYN() && TCB.getFlowCount() < VpnConfig.TCP_MAX_FLOWS) {
+            int verdict = classify(destinationAddress, destinationPort);
+            VpnStats.onFlowClassified(verdict);
+            // A mocked flow is answered here alone and never connects upstream
+            SocketChannel outputChannel = null;
+            if (verdict != IFlowClassifier.MOCKED) {
+                outputChannel = SocketChannel.open();
+                outputChannel.configureBlocking(false);
+                mVpnService.protect(outputChannel.socket());
+            }
             //模拟一个ack&syn包
-            TCB tcb = new TCB(tcbKey, mRandom.nextInt(Short.MAX_VALUE + 1), tcpHeader.sequenceNumber, tcpHeader.sequenceNumber + 1,
-                    tcpHeader.acknowledgementNumber, outputChannel, currentOutPacket);
+            Packet referencePacket = currentOutPacket.copyHeader();
+            long initialSequenceNumber = mRandom.nextInt(Short.MAX_VALUE + 1);
+            TCB tcb = new TCB(tcbKey, initialSequenceNumber, sequenceNumber, sequenceNumber + 1,
+                    initialSequenceNumber, outputChannel, referencePacket);
+            tcb.verdict = verdict;
+            // The SYN window is never scaled, the shift only applies once both sides agreed on it
+            tcb.sendWindow = window;
+            if (windowScale >= 0)
+                tcb.sendWindowScale = windowScale;
+            if (maxSegmentSize > 0)
+                tcb.maxSegmentSize = Math.min(maxSegmentSize, TCB.DEFAULT_MSS);
             TCB.putTCB(tcbKey, tcb);
+            tcb.scheduleTimeout(mTimingWheel, VpnConfig.TCP_SYN_TIMEOUT_MS);
+            if (outputChannel == null) {
+                tcb.status = TCBStatus.SYN_RECEIVED;
+                tcb.updateSynAckBuffer(responseBuffer);
+                tcb.mySequenceNum++;
+                mNetworksToDevicePacketBytes.offer(responseBuffer);
+                return;
+            }
             try {
-                outputChannel.connect(new InetSocketAddress(destinationAddress, destinationPort));
+                outputChannel.connect(new InetSocketAddress(Packet.intToInetAddress(destinationAddress), destinationPort));
                 if (outputChannel.finishConnect()) {
                     tcb.status = TCBStatus.SYN_RECEIVED;
-                    currentOutPacket.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.SYN | TCPHeader.ACK),
-                            tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+                    tcb.updateSynAckBuffer(responseBuffer);
                     tcb.mySequenceNum++;
                 } else {
                     tcb.status = TCBStatus.SYN_SENT;
-                    mSelector.wakeup();
                     tcb.selectionKey = outputChannel.register(mSelector, SelectionKey.OP_CONNECT, tcb);
                     return;
                 }
             } catch (IOException e) {
-                currentOutPacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
+                tcb.updateTCPBuffer(responseBuffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum, 0);
                 TCB.closeTCB(tcb);
             }
         } else {
             currentOutPacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.RST,
-                    0, tcpHeader.sequenceNumber + 1, 0);
+                    0, sequenceNumber + 1, 0);
         }
         mNetworksToDevicePacketBytes.offer(responseBuffer);
     }
 
-    private void processDuplicateSYN(TCB tcb, TCPHeader tcpHeader, ByteBuffer responseBuffer) {
-        synchronized (tcb) {
-            if (tcb.status == TCBStatus.SYN_SENT) {
-                tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
+    /**
+     * Ask the monitors once which of them want to see a new flow, see {@link IFlowClassifier}
+     */
+    private int classify(int destinationAddress, int destinationPort) {
+        VpnManager manager = VpnManager.getInstance();
+        if (!manager.hasHttpMonitor() && !manager.hasPayloadMonitor())
+            return IFlowClassifier.PASSTHROUGH;
+        return manager.classify(destinationAddress, destinationPort, HostNames.get(destinationAddress));
+    }
+
+    /**
+     * @return the TCB, or null if a new SYN retired it and the packet opens a new connection
+     */
+    private TCB processTimeWait(TCB tcb, Packet packet, ByteBuffer responseBuffer) {
+        if (packet.isSYN() || packet.isRST()) {
+            TCB.closeTCB(tcb);
+            return packet.isSYN() ? null : tcb;
+        }
+        // Our ACK of the device's FIN got lost
+        if (packet.isFIN())
+            sendACK(tcb, responseBuffer);
+        return tcb;
+    }
+
+    /**
+     * Called by the owning shard when the flow's timer fires
+     */
+    public void processTimeout(TCB tcb) {
+        if (tcb.status == TCBStatus.TIME_WAIT) {
+            TCB.closeTCB(tcb);
+            return;
+        }
+        if (tcb.status == TCBStatus.ESTABLISHED) {
+            // Activity doesn't reschedule the timer, check how long the flow has really been idle
+            long idle = TimingWheel.nowMillis() - tcb.lastActiveTime;
+            if (idle < VpnConfig.TCP_IDLE_TIMEOUT_MS) {
+                tcb.scheduleTimeout(mTimingWheel, VpnConfig.TCP_IDLE_TIMEOUT_MS - idle);
                 return;
             }
         }
+        Log.d(TAG, "Timeout in " + tcb.status + ": " + TCB.TCBKey.toString(tcb.mTcbKey));
+        sendRST(tcb, 0, ByteBufferPool.acquire(ByteBufferPool.SMALL));
+    }
+
+    private void processDuplicateSYN(TCB tcb, Packet packet, ByteBuffer responseBuffer) {
+        if (tcb.status == TCBStatus.SYN_SENT) {
+            tcb.myAcknowledgementNum = packet.getSequenceNumber() + 1;
+            return;
+        }
         sendRST(tcb, 1, responseBuffer);
     }
 
-    private void processFIN(TCB tcb, TCPHeader tcpHeader, ByteBuffer responseBuffer) {
-        synchronized (tcb) {
-            Packet referencePacket = tcb.referencePacket;
-            tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
-            tcb.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+    private void processFIN(TCB tcb, Packet packet, ByteBuffer responseBuffer) {
+        // FIN after a gap, wait for the missing data to be resent first
+        if ((int) (packet.getSequenceNumber() - tcb.myAcknowledgementNum) > 0) {
+            sendACK(tcb, responseBuffer);
+            return;
+        }
+        tcb.onDeviceAck(packet);
+        if (tcb.pendingDecision != null) {
+            // The data before it waits for the monitors, a mock response must go out before our
+            // FIN. Replayed by resumeParked(), retransmits of it are ignored until then
+            tcb.finParked = true;
+            tcb.parkedFinSequenceNum = packet.getSequenceNumber();
+            return;
+        }
+        acceptFIN(tcb, packet.getSequenceNumber(), responseBuffer);
+        flushDeviceBacklog(tcb);
+    }
+
+    private void acceptFIN(TCB tcb, long sequenceNum, ByteBuffer responseBuffer) {
+        tcb.myAcknowledgementNum = sequenceNum + 1;
 
-            if (tcb.waitingForNetworkData) {
-                tcb.status = TCBStatus.CLOSE_WAIT;
-                referencePacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK,
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
-            } else {
-                tcb.status = TCBStatus.LAST_ACK;
-                referencePacket.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.FIN | TCPHeader.ACK),
-                        tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
-                tcb.mySequenceNum++; // FIN counts as a byte
-            }
+        // Our FIN follows the server's, or the rest of a mock response once the window allows
+        if (tcb.waitingForNetworkData || !tcb.deviceBacklog.isEmpty()) {
+            tcb.status = TCBStatus.CLOSE_WAIT;
+            tcb.updateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK,
+                    tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+        } else {
+            tcb.status = TCBStatus.LAST_ACK;
+            tcb.updateTCPBuffer(responseBuffer, (byte) (TCPHeader.FIN | TCPHeader.ACK),
+                    tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+            tcb.mySequenceNum++; // FIN counts as a byte
         }
+        tcb.scheduleTimeout(mTimingWheel, VpnConfig.TCP_CLOSE_TIMEOUT_MS);
         mNetworksToDevicePacketBytes.offer(responseBuffer);
     }
 
-    private void processACK(TCB tcb, TCPHeader tcpHeader, ByteBuffer payloadBuffer, ByteBuffer responseBuffer) throws IOException {
+    private void processACK(TCB tcb, Packet packet, ByteBuffer payloadBuffer, ByteBuffer responseBuffer) throws IOException {
         int payloadSize = payloadBuffer.limit() - payloadBuffer.position();
 
-        synchronized (tcb) {
-            SocketChannel outputChannel = tcb.socketChannel;
-            if (tcb.status == TCBStatus.SYN_RECEIVED) {
-                tcb.status = TCBStatus.ESTABLISHED;
-                mSelector.wakeup();
+        SocketChannel outputChannel = tcb.socketChannel;
+        if (tcb.status == TCBStatus.SYN_RECEIVED) {
+            tcb.status = TCBStatus.ESTABLISHED;
+            if (outputChannel != null) {
                 tcb.selectionKey = outputChannel.register(mSelector, SelectionKey.OP_READ, tcb);
                 tcb.waitingForNetworkData = true;
-            } else if (tcb.status == TCBStatus.LAST_ACK) {
-                closeCleanly(tcb, responseBuffer);
-                return;
             }
+            tcb.scheduleTimeout(mTimingWheel, VpnConfig.TCP_IDLE_TIMEOUT_MS);
+        } else if (tcb.status == TCBStatus.LAST_ACK) {
+            // Our FIN is acknowledged, linger to answer a retransmitted FIN of the device
+            tcb.status = TCBStatus.TIME_WAIT;
+            tcb.closeChannel();
+            tcb.scheduleTimeout(mTimingWheel, VpnConfig.TCP_TIME_WAIT_MS);
+            return;
+        }
+        tcb.onDeviceAck(packet);
+        flushDeviceBacklog(tcb);
 
-            if (payloadSize == 0) return; // Empty ACK, ignore
+        if (payloadSize == 0) return; // Empty ACK, ignore
 
 
-            if (!tcb.waitingForNetworkData) {
-                mSelector.wakeup();
-                tcb.selectionKey.interestOps(SelectionKey.OP_READ);
-                tcb.waitingForNetworkData = true;
+        if (!tcb.waitingForNetworkData && outputChannel != null) {
+            tcb.setInterest(SelectionKey.OP_READ, true);
+            tcb.waitingForNetworkData = true;
+        }
+
+        long sequenceNum = packet.getSequenceNumber();
+        int offset = (int) (sequenceNum - tcb.myAcknowledgementNum);
+        if (offset > 0) {
+            // Ahead of a gap, hold it and repeat our ACK so the device resends the missing data
+            if (!tcb.getReassembly().add(sequenceNum, payloadBuffer))
+                Log.d(TAG, "Reassembly full, dropped segment: " + TCB.TCBKey.toString(tcb.mTcbKey));
+            sendACK(tcb, responseBuffer);
+            return;
+        }
+        if (offset < 0) {
+            // Retransmission, answer with the cumulative ACK if there is nothing new in it
+            if (-offset >= payloadSize) {
+                sendACK(tcb, responseBuffer);
+                return;
             }
+            payloadBuffer.position(payloadBuffer.position() - offset);
+        }
 
-            // Forward to remote server
-            try {
-                byte[] b = interceptor(payloadBuffer.duplicate());
-                if (null != b) {
-                    tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + payloadSize;
-                    tcb.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
-                    Packet referencePacket = tcb.referencePacket;
-                    referencePacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
-                    mNetworksToDevicePacketBytes.offer(responseBuffer);
-
-
-                    String response = buildResponse(b);
-                    ByteBuffer receiveBuffer = ByteBufferPool.acquire();
-                    // Leave space for the header
-                    receiveBuffer.position(TCPInput.HEADER_SIZE);
-
-                    receiveBuffer.put(response.getBytes());
-//                    Packet referencePacket = tcb.referencePacket;
-
-                    referencePacket.updateTCPBuffer(receiveBuffer, (byte) (Packet.TCPHeader.PSH | Packet.TCPHeader.ACK),
-                            tcb.mySequenceNum, tcb.myAcknowledgementNum, response.length());
-                    tcb.mySequenceNum += response.length(); // Next sequence number
-                    receiveBuffer.position(TCPInput.HEADER_SIZE + response.length());
-                    mNetworksToDevicePacketBytes.offer(receiveBuffer);
-                    return;
+        // Forward to remote server, followed by anything the segment made contiguous
+        try {
+            // Parked data or socket backlog full, left unacknowledged for the device to retransmit
+            if (!forward(tcb, payloadBuffer))
+                return;
+            ByteBuffer segment;
+            while (tcb.reassembly != null
+                    && (segment = tcb.reassembly.poll(tcb.myAcknowledgementNum)) != null) {
+                try {
+                    if (!forward(tcb, segment))
+                        break;
+                } finally {
+                    ByteBufferPool.release(segment);
                 }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Network write error: " + TCB.TCBKey.toString(tcb.mTcbKey), e);
+            sendRST(tcb, 0, responseBuffer);
+            return;
+        }
 
-                while (payloadBuffer.hasRemaining())
-                    outputChannel.write(payloadBuffer);
-            } catch (Exception e) {
-                Log.e(TAG, "Network write error: " + tcb.mTcbKey, e);
-                sendRST(tcb, payloadSize, responseBuffer);
-                return;
+        sendACK(tcb, responseBuffer);
+    }
+
+    /**
+     * Hand in-order device data to the socket, to the monitors, or park it behind the flow's
+     * pending decision. Advances myAcknowledgementNum past the data if it was taken.
+     *
+     * @return false if the flow has too much data parked or waiting for its socket already
+     */
+    private boolean forward(TCB tcb, ByteBuffer data) throws IOException {
+        int size = data.remaining();
+        // The server doesn't keep up, let the device wait instead of queueing without bound
+        if (tcb.pendingDecision == null && tcb.isWriteBacklogFull(size))
+            return false;
+        if (tcb.verdict == IFlowClassifier.PASSTHROUGH) {
+            // No monitor wants to see the flow
+            tcb.writeToNetwork(data);
+        } else if (tcb.pendingDecision != null) {
+            if (tcb.parkedBytes + size > VpnConfig.INTERCEPT_MAX_PARKED_BYTES)
+                return false;
+            tcb.parkedSegments.offer(copy(data));
+            tcb.parkedBytes += size;
+        } else {
+            boolean httpHead = isHttpHead(tcb, data);
+            if (needsDecision(tcb, httpHead))
+                startDecision(tcb, copy(data), httpHead);
+            else
+                tcb.writeToNetwork(data);
+        }
+        tcb.myAcknowledgementNum += size;
+        return true;
+    }
+
+    /**
+     * Whether the payload starts an HTTP request the HTTP monitors should see. Flows whose first
+     * payload isn't HTTP, such as TLS, are never parsed again.
+     */
+    private boolean isHttpHead(TCB tcb, ByteBuffer payload) {
+        if (tcb.httpState == TCB.HttpState.NOT_HTTP || !VpnManager.getInstance().hasHttpMonitor())
+            return false;
+        if (HttpRequestParser.parse(payload, mHttpRequest) == HttpRequestParser.NOT_HTTP) {
+            // Either another protocol, or the body of a request that was already seen
+            if (tcb.httpState == TCB.HttpState.UNKNOWN)
+                tcb.httpState = TCB.HttpState.NOT_HTTP;
+            return false;
+        }
+        tcb.httpState = TCB.HttpState.HTTP;
+        return true;
+    }
+
+    /**
+     * Whether the monitors get to answer the payload before it goes anywhere. Every payload of a
+     * mocked flow needs them, there is nowhere else for it to go.
+     */
+    private boolean needsDecision(TCB tcb, boolean httpHead) {
+        return httpHead || tcb.verdict == IFlowClassifier.MOCKED || VpnManager.getInstance().hasPayloadMonitor();
+    }
+
+    /**
+     * Ask the monitors about payload on the interception executor, parking the flow until the
+     * decision is back. Takes ownership of the pooled payload.
+     */
+    private void startDecision(TCB tcb, ByteBuffer payload, boolean httpHead) throws IOException {
+        InterceptDecision decision = new InterceptDecision(tcb, payload, httpHead, mSelectorTasks, this);
+        try {
+            mInterceptExecutor.execute(decision);
+        } catch (RejectedExecutionException e) {
+            // Executor saturated or shut down, the flow is not held back for it
+            Log.w(TAG, "Interception queue full, passing through: " + TCB.TCBKey.toString(tcb.mTcbKey));
+            try {
+                passThrough(tcb, payload, httpHead, "503 Service Unavailable");
+            } finally {
+                ByteBufferPool.release(payload);
             }
+            return;
+        }
+        tcb.pendingDecision = decision;
+        mTimingWheel.schedule(decision.timer, VpnConfig.INTERCEPT_TIMEOUT_MS);
+    }
 
-            // TODO: We don't expect out-of-order packets, but verify
-            tcb.myAcknowledgementNum = tcpHeader.sequenceNumber + payloadSize;
-            tcb.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
-            Packet referencePacket = tcb.referencePacket;
-            referencePacket.updateTCPBuffer(responseBuffer, (byte) TCPHeader.ACK, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+    /**
+     * A decision is back from the monitors: answer with the mock response or send the payload
+     * upstream, then go on with the data parked behind it
+     */
+    @Override
+    public void onDecision(InterceptDecision decision) {
+        TCB tcb = decision.tcb;
+        try {
+            // Timed out or closed in the meantime
+            if (tcb.pendingDecision != decision)
+                return;
+            mTimingWheel.cancel(decision.timer);
+            tcb.pendingDecision = null;
+            if (null != decision.result)
+                sendToDevice(tcb, buildResponse(decision.result).getBytes());
+            else
+                passThrough(tcb, decision.payload, decision.httpHead, "404 Not Found");
+            resumeParked(tcb);
+        } catch (IOException e) {
+            Log.e(TAG, "Network write error: " + TCB.TCBKey.toString(tcb.mTcbKey), e);
+            sendRST(tcb, 0, ByteBufferPool.acquire(ByteBufferPool.SMALL));
+        } finally {
+            ByteBufferPool.release(decision.payload);
         }
-        mNetworksToDevicePacketBytes.offer(responseBuffer);
     }
 
-    private void sendRST(TCB tcb, int prevPayloadSize, ByteBuffer buffer) {
-        tcb.referencePacket.updateTCPBuffer(buffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum + prevPayloadSize, 0);
+    /**
+     * Called by the owning shard when the monitors took too long: the payload goes upstream as if
+     * they had let it through, and a late answer is ignored
+     */
+    public void processDecisionTimeout(InterceptDecision decision) {
+        TCB tcb = decision.tcb;
+        if (tcb.pendingDecision != decision)
+            return;
+        Log.w(TAG, "Interception timed out, passing through: " + TCB.TCBKey.toString(tcb.mTcbKey));
+        tcb.pendingDecision = null;
+        try {
+            // The monitors may still be reading the payload, write from a view of our own
+            passThrough(tcb, decision.payload.duplicate(), decision.httpHead, "504 Gateway Timeout");
+            resumeParked(tcb);
+        } catch (IOException e) {
+            Log.e(TAG, "Network write error: " + TCB.TCBKey.toString(tcb.mTcbKey), e);
+            sendRST(tcb, 0, ByteBufferPool.acquire(ByteBufferPool.SMALL));
+        }
+    }
+
+    /**
+     * Forward parked segments in order until one of them needs a decision of its own, then the
+     * device's FIN if it came behind them
+     */
+    private void resumeParked(TCB tcb) throws IOException {
+        ByteBuffer segment;
+        while (tcb.pendingDecision == null && (segment = tcb.parkedSegments.poll()) != null) {
+            tcb.parkedBytes -= segment.remaining();
+            boolean httpHead = isHttpHead(tcb, segment);
+            if (needsDecision(tcb, httpHead)) {
+                startDecision(tcb, segment, httpHead);
+            } else {
+                try {
+                    tcb.writeToNetwork(segment);
+                } finally {
+                    ByteBufferPool.release(segment);
+                }
+            }
+        }
+        if (tcb.finParked && tcb.pendingDecision == null) {
+            tcb.finParked = false;
+            acceptFIN(tcb, tcb.parkedFinSequenceNum, ByteBufferPool.acquire(ByteBufferPool.SMALL));
+        }
+    }
+
+    /**
+     * Send a payload the monitors let through upstream. A mocked flow has no upstream: an
+     * unanswered request gets mockedStatus instead, anything else is dropped.
+     */
+    private void passThrough(TCB tcb, ByteBuffer payload, boolean httpHead, String mockedStatus) throws IOException {
+        if (tcb.verdict != IFlowClassifier.MOCKED)
+            tcb.writeToNetwork(payload);
+        else if (httpHead)
+            sendToDevice(tcb, buildStatusResponse(mockedStatus).getBytes());
+    }
+
+    private static ByteBuffer copy(ByteBuffer data) {
+        ByteBuffer copy = ByteBufferPool.acquire(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    private void sendACK(TCB tcb, ByteBuffer buffer) {
+        tcb.updateTCPBuffer(buffer, (byte) TCPHeader.ACK, tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
         mNetworksToDevicePacketBytes.offer(buffer);
-        TCB.closeTCB(tcb);
     }
 
-    private void closeCleanly(TCB tcb, ByteBuffer buffer) {
-        ByteBufferPool.release(buffer);
-        TCB.closeTCB(tcb);
+    /**
+     * Queue data for the device behind any that is still waiting, and send what the device window
+     * has room for now
+     */
+    private void sendToDevice(TCB tcb, byte[] data) {
+        tcb.deviceBacklog.offer(ByteBuffer.wrap(data));
+        flushDeviceBacklog(tcb);
     }
 
-    private byte[] interceptor(ByteBuffer payload) {
-        if (null == payload) {
-            return null;
+    /**
+     * Send queued device data as segments no larger than the flow's MSS while the device window
+     * has room, like TCPInput does with socket data. Once it is all out, socket reads resume and
+     * a FIN held back behind it is sent.
+     */
+    private void flushDeviceBacklog(TCB tcb) {
+        if (tcb.deviceBacklog.isEmpty())
+            return;
+        ByteBuffer data;
+        while ((data = tcb.deviceBacklog.peek()) != null) {
+            int room = tcb.sendWindowRemaining();
+            if (room <= 0)
+                return;
+            int segmentSize = Math.min(Math.min(tcb.maxSegmentSize, data.remaining()), room);
+            ByteBuffer receiveBuffer = ByteBufferPool.acquire(TCPInput.HEADER_SIZE + segmentSize);
+            // Leave space for the header
+            receiveBuffer.position(TCPInput.HEADER_SIZE);
+            receiveBuffer.put(data.array(), data.position(), segmentSize);
+            data.position(data.position() + segmentSize);
+            if (!data.hasRemaining())
+                tcb.deviceBacklog.poll();
+
+            // PSH on the last segment of each response
+            byte flags = (byte) (data.hasRemaining() ? TCPHeader.ACK : TCPHeader.PSH | TCPHeader.ACK);
+            tcb.updateTCPBuffer(receiveBuffer, flags, tcb.mySequenceNum, tcb.myAcknowledgementNum, segmentSize);
+            tcb.mySequenceNum += segmentSize; // Next sequence number
+            receiveBuffer.position(TCPInput.HEADER_SIZE + segmentSize);
+            mNetworksToDevicePacketBytes.offer(receiveBuffer);
+        }
+
+        if (tcb.readPaused && tcb.sendWindowRemaining() > 0) {
+            tcb.readPaused = false;
+            tcb.setInterest(SelectionKey.OP_READ, true);
+        }
+        if (tcb.status == TCBStatus.CLOSE_WAIT && !tcb.waitingForNetworkData) {
+            ByteBuffer finBuffer = ByteBufferPool.acquire(ByteBufferPool.SMALL);
+            tcb.status = TCBStatus.LAST_ACK;
+            tcb.updateTCPBuffer(finBuffer, (byte) (TCPHeader.FIN | TCPHeader.ACK),
+                    tcb.mySequenceNum, tcb.myAcknowledgementNum, 0);
+            tcb.mySequenceNum++; // FIN counts as a byte
+            tcb.scheduleTimeout(mTimingWheel, VpnConfig.TCP_CLOSE_TIMEOUT_MS);
+            mNetworksToDevicePacketBytes.offer(finBuffer);
         }
-        int payloadSize = payload.limit() - payload.position();
-        Log.d("chenlong", "=============begin===========");
-        byte[] b = new byte[payloadSize];
-        payload.get(b, 0, payloadSize);
-        String payloadText = new String(b);
-        Log.d("chenlong", payloadText);
-        byte[] result = VpnManager.getInstance().notify(payloadText);
-        Log.d("chenlong", "=============end============");
-        return result;
     }
 
+    private void sendRST(TCB tcb, int prevPayloadSize, ByteBuffer buffer) {
+        tcb.updateTCPBuffer(buffer, (byte) TCPHeader.RST, 0, tcb.myAcknowledgementNum + prevPayloadSize, 0);
+        mNetworksToDevicePacketBytes.offer(buffer);
+        TCB.closeTCB(tcb);
+    }
 
     private String buildResponse(byte[] data) {
         if (null == data) {
@@ -277,4 +567,12 @@ public class TCPOutput implements Runnable {
 
         return response;
     }
+
+    private String buildStatusResponse(String status) {
+        String response = "HTTP/1.1 " + status + "\r\n";
+        response += "Content-Length: 0\r\n";
+        response += "Connection: keep-alive\r\n";
+        response += "\r\n";
+        return response;
+    }
 }
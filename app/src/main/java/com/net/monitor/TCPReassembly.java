@@ -0,0 +1,110 @@
+package com.net.monitor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Device segments of one flow that arrived ahead of a gap, held in pool buffers until the
+ * missing data shows up. Memory held by all flows together is capped, see {@link VpnConfig}.
+ */
+public class TCPReassembly {
+    private static final AtomicLong totalBytes = new AtomicLong();
+
+    // Sorted by sequence number
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private int bytes;
+
+    private static class Segment {
+        final long sequenceNum;
+        final ByteBuffer data;
+
+        Segment(long sequenceNum, ByteBuffer data) {
+            this.sequenceNum = sequenceNum;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Copy an out-of-order payload in. Does not take ownership of payload.
+     *
+     * @return false if it was dropped because a memory limit was reached
+     */
+    public boolean add(long sequenceNum, ByteBuffer payload) {
+        int size = payload.remaining();
+        int index = 0;
+        while (index < segments.size() && (int) (segments.get(index).sequenceNum - sequenceNum) < 0)
+            index++;
+        if (index < segments.size()) {
+            Segment next = segments.get(index);
+            // Retransmission of a segment we already hold
+            if (next.sequenceNum == sequenceNum && next.data.remaining() >= size)
+                return true;
+        }
+
+        ByteBuffer buffer = ByteBufferPool.acquire(size);
+        int charge = buffer.capacity();
+        if (bytes + charge > VpnConfig.REASSEMBLY_FLOW_LIMIT) {
+            ByteBufferPool.release(buffer);
+            return false;
+        }
+        if (totalBytes.addAndGet(charge) > VpnConfig.REASSEMBLY_TOTAL_LIMIT) {
+            totalBytes.addAndGet(-charge);
+            ByteBufferPool.release(buffer);
+            return false;
+        }
+        bytes += charge;
+        buffer.put(payload.duplicate());
+        buffer.flip();
+        segments.add(index, new Segment(sequenceNum, buffer));
+        return true;
+    }
+
+    /**
+     * Take the held segment that continues the stream at expectedSequenceNum, with any part
+     * already received skipped.
+     *
+     * @return a pool buffer the caller must release, or null while there is still a gap
+     */
+    public ByteBuffer poll(long expectedSequenceNum) {
+        while (!segments.isEmpty()) {
+            Segment segment = segments.get(0);
+            int offset = (int) (expectedSequenceNum - segment.sequenceNum);
+            if (offset < 0)
+                return null;
+            segments.remove(0);
+            uncharge(segment.data);
+            if (offset >= segment.data.remaining()) {
+                ByteBufferPool.release(segment.data);
+                continue;
+            }
+            segment.data.position(segment.data.position() + offset);
+            return segment.data;
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            uncharge(segment.data);
+            ByteBufferPool.release(segment.data);
+        }
+        segments.clear();
+    }
+
+    private void uncharge(ByteBuffer buffer) {
+        bytes -= buffer.capacity();
+        totalBytes.addAndGet(-buffer.capacity());
+    }
+
+    /**
+     * Pool memory held for reassembly by all flows
+     */
+    public static long getTotalBytes() {
+        return totalBytes.get();
+    }
+}
@@ -0,0 +1,107 @@
+package com.net.monitor;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.concurrent.Executor;
+
+/**
+ * Single-threaded TCP reactor. Owns a selector and every flow hashed to it by {@link TCPEngine},
+ * so TCB state and selection keys are only ever touched from this thread.
+ */
+public class TCPShard implements Runnable, PacketQueue.Consumer, TimingWheel.Listener {
+    private static final String TAG = TCPShard.class.getSimpleName();
+    // Device packets handled per pass before the selector is polled again
+    private static final int PACKET_BATCH = 64;
+
+    private final int index;
+    private final Selector selector;
+    private final PacketQueue inQueue;
+    private final PacketQueue networkToDeviceQueue;
+    private final TCPInput input;
+    private final TCPOutput output;
+    private final TimingWheel timingWheel;
+    // Coalesces selector wakeups for queued packets and brings interception decisions back to
+    // this thread, flows register from it directly
+    private final SelectorTaskQueue selectorTasks;
+
+    public TCPShard(int index, PacketQueue networkToDeviceQueue, Executor interceptExecutor,
+                    LocalVPNService vpnService) throws IOException {
+        this.index = index;
+        this.inQueue = new PacketQueue("tcp-shard-" + index, VpnConfig.TCP_SHARD_QUEUE_CAPACITY,
+                VpnConfig.DEVICE_TO_NETWORK_QUEUE_POLICY);
+        this.networkToDeviceQueue = networkToDeviceQueue;
+        this.selector = Selector.open();
+        this.selectorTasks = new SelectorTaskQueue(selector);
+        this.timingWheel = new TimingWheel(VpnConfig.TIMER_TICK_MS, VpnConfig.TIMER_WHEEL_SIZE, this);
+        this.input = new TCPInput(networkToDeviceQueue, selector, timingWheel);
+        this.output = new TCPOutput(networkToDeviceQueue, selector, timingWheel, selectorTasks,
+                interceptExecutor, vpnService);
+        inQueue.setConsumer(this);
+        // Flows paused because the device queue filled up are resumed from the loop
+        networkToDeviceQueue.addResumeListener(this);
+        VpnStats.registerQueue(inQueue);
+    }
+
+    public PacketQueue getInQueue() {
+        return inQueue;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    @Override
+    public void wakeup() {
+        // One selector wakeup per select() is enough, however many packets were queued
+        selectorTasks.wakeup();
+    }
+
+    @Override
+    public void onTimeout(TimingWheel.Timer timer) {
+        if (timer.attachment instanceof InterceptDecision)
+            output.processDecisionTimeout((InterceptDecision) timer.attachment);
+        else
+            output.processTimeout((TCB) timer.attachment);
+    }
+
+    @Override
+    public void run() {
+        Log.i(TAG, "Started shard " + index);
+        try {
+            Thread currentThread = Thread.currentThread();
+            while (!currentThread.isInterrupted()) {
+                selectorTasks.runPending();
+                // Fires due timers, and bounds the select() by the next tick while any are pending
+                long timeout = timingWheel.advance(TimingWheel.nowMillis());
+                int readyChannels;
+                if (inQueue.isEmpty())
+                    readyChannels = selector.select(timeout);
+                else
+                    readyChannels = selector.selectNow();
+                if (currentThread.isInterrupted())
+                    break;
+
+                if (input.hasQueuePausedFlows() && !networkToDeviceQueue.isPaused())
+                    input.resumeQueuePausedFlows();
+                int packets = input.processSelectedKeys();
+                if (readyChannels > 0)
+                    VpnStats.TCP_INPUT_WAKEUPS.record(packets);
+
+                ByteBuffer payloadBuffer;
+                for (int i = 0; i < PACKET_BATCH && (payloadBuffer = inQueue.poll()) != null; i++) {
+                    try {
+                        output.processPacket(payloadBuffer);
+                    } catch (IOException e) {
+                        Log.e(TAG, e.toString(), e);
+                    }
+                }
+            }
+            Log.i(TAG, "Stopping shard " + index);
+        } catch (IOException e) {
+            Log.w(TAG, e.toString(), e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.net.monitor;
+
+/**
+ * Hashed timing wheel (Varghese and Lauck). Scheduling and cancelling are O(1), expiry costs
+ * one slot per tick. Not thread safe: it belongs to one reactor thread, which calls
+ * {@link #advance(long)} from its loop.
+ */
+public class TimingWheel {
+    public interface Listener {
+        void onTimeout(Timer timer);
+    }
+
+    /**
+     * Intrusive timer node, embed one per object that needs a timeout
+     */
+    public static class Timer {
+        public final Object attachment;
+        private long deadlineTick;
+        private Timer prev, next;
+        private int slot = -1;
+
+        public Timer(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer[] slots;
+    private final int mask;
+    private final Listener listener;
+    private long currentTick;
+    private final long startMillis;
+    private int size;
+
+    public TimingWheel(long tickMillis, int wheelSize, Listener listener) {
+        int slotCount = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.slots = new Timer[slotCount];
+        this.mask = slotCount - 1;
+        this.listener = listener;
+        this.startMillis = nowMillis();
+    }
+
+    /**
+     * (Re)schedule the timer to fire after delayMillis, rounded up to the next tick
+     */
+    public void schedule(Timer timer, long delayMillis) {
+        cancel(timer);
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        timer.deadlineTick = currentTick + ticks;
+        timer.slot = (int) (timer.deadlineTick & mask);
+        timer.prev = null;
+        timer.next = slots[timer.slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        slots[timer.slot] = timer;
+        size++;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.slot < 0)
+            return;
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        timer.prev = timer.next = null;
+        timer.slot = -1;
+        size--;
+    }
+
+    /**
+     * Monotonic clock the wheel runs on
+     */
+    public static long nowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Fire every timer whose deadline has passed by nowMillis, taken from {@link #nowMillis()}
+     *
+     * @return millis until the next tick, or 0 if no timer is scheduled (block indefinitely)
+     */
+    public long advance(long nowMillis) {
+        long targetTick = (nowMillis - startMillis) / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            if (size == 0) {
+                // Nothing to fire, jump straight to now
+                currentTick = targetTick;
+                break;
+            }
+            expireSlot((int) (currentTick & mask));
+        }
+        if (size == 0)
+            return 0;
+        return Math.max(1, startMillis + (currentTick + 1) * tickMillis - nowMillis);
+    }
+
+    private void expireSlot(int slot) {
+        Timer timer = slots[slot];
+        while (timer != null) {
+            Timer next = timer.next;
+            // Timers further than one revolution away stay for a later round
+            if (timer.deadlineTick <= currentTick) {
+                cancel(timer);
+                listener.onTimeout(timer);
+                // The listener may have cancelled or rescheduled the next timer
+                if (next != null && next.slot != slot)
+                    next = slots[slot];
+            }
+            timer = next;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+}
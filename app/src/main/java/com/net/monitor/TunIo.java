@@ -0,0 +1,80 @@
+package com.net.monitor;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Tun read/write steps shared by the single-threaded {@link VpnEngine} and the
+ * {@link VpnRead}/{@link VpnWrite} pair. The tun descriptor is non-blocking, so reads return 0
+ * and writes leave the buffer untouched once the kernel has nothing more to give or take.
+ */
+class TunIo {
+    private static final String TAG = TunIo.class.getSimpleName();
+
+    private TunIo() {
+    }
+
+    /**
+     * Read up to maxPackets packets from the device and dispatch them to the UDP queue or
+     * the owning TCP shard.
+     * The packet view belongs to the calling thread and is only used for classification.
+     *
+     * @return number of packets read
+     */
+    static int readFromDevice(FileChannel vpnInput, int maxPackets, Packet packet,
+                              PacketQueue deviceToNetworkUDPQueue,
+                              TCPEngine tcpEngine) throws IOException {
+        int packets = 0;
+        while (packets < maxPackets) {
+            ByteBuffer bufferToNetwork = ByteBufferPool.acquire(ByteBufferPool.MTU);
+            int readBytes = vpnInput.read(bufferToNetwork);
+            if (readBytes <= 0) {
+                ByteBufferPool.release(bufferToNetwork);
+                break;
+            }
+            packets++;
+            VpnStats.onUplinkPacket();
+            bufferToNetwork.flip();
+            packet.wrap(bufferToNetwork);
+            if (packet.isUDP()) {
+                deviceToNetworkUDPQueue.offer(bufferToNetwork);
+            } else if (packet.isTCP()) {
+                tcpEngine.dispatch(packet);
+            } else {
+                Log.w(TAG, "Unknown packet type");
+                Log.w(TAG, packet.toString());
+                ByteBufferPool.release(bufferToNetwork);
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Write up to maxPackets queued buffers, stopping early when the queue is empty or the tun
+     * refuses more data.
+     *
+     * @return the buffer that could not be written yet, or null
+     */
+    static ByteBuffer writeToDevice(FileChannel vpnOutput, PacketQueue networkToDeviceQueue,
+                                    ByteBuffer pendingWrite, int maxPackets) throws IOException {
+        ByteBuffer bufferFromNetwork = pendingWrite;
+        for (int packets = 0; packets < maxPackets; packets++) {
+            if (bufferFromNetwork == null) {
+                bufferFromNetwork = networkToDeviceQueue.poll();
+                if (bufferFromNetwork == null)
+                    return null;
+                bufferFromNetwork.flip();
+            }
+            vpnOutput.write(bufferFromNetwork);
+            if (bufferFromNetwork.hasRemaining())
+                return bufferFromNetwork;
+            VpnStats.onDownlinkPacket();
+            ByteBufferPool.release(bufferFromNetwork);
+            bufferFromNetwork = null;
+        }
+        return bufferFromNetwork;
+    }
+}
@@ -20,66 +20,93 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class UDPInput implements Runnable {
     private static final String TAG = UDPInput.class.getSimpleName();
     private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE;
 
     private Selector selector;
-    private ConcurrentLinkedQueue<ByteBuffer> outputQueue;
+    private SelectorTaskQueue selectorTasks;
+    private PacketQueue outputQueue;
+    private UDPNat udpNat;
+    private DnsResolver dnsResolver;
 
-    public UDPInput(ConcurrentLinkedQueue<ByteBuffer> outputQueue, Selector selector) {
+    /**
+     * @param dnsResolver caches the DNS responses read here, may be null
+     */
+    public UDPInput(PacketQueue outputQueue, SelectorTaskQueue selectorTasks, UDPNat udpNat, DnsResolver dnsResolver) {
         this.outputQueue = outputQueue;
-        this.selector = selector;
+        this.selectorTasks = selectorTasks;
+        this.selector = selectorTasks.getSelector();
+        this.udpNat = udpNat;
+        this.dnsResolver = dnsResolver;
     }
 
     @Override
     public void run() {
+        Log.i(TAG, "Started");
         try {
-            Log.i(TAG, "Started");
             while (!Thread.interrupted()) {
-                int readyChannels = selector.select();
-
-                if (readyChannels == 0) {
-                    Thread.sleep(10);
+                // Stop reading while the device queue is full, datagrams wait in the socket buffers
+                if (!outputQueue.awaitResume())
+                    break;
+                // Registrations queued by UDPNat on the UDPOutput thread
+                selectorTasks.runPending();
+                // Zero ready channels just means a wakeup() for new tasks
+                if (selector.select() == 0)
                     continue;
-                }
-
-                Set<SelectionKey> keys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = keys.iterator();
 
+                int packets = 0;
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
                 while (keyIterator.hasNext() && !Thread.interrupted()) {
                     SelectionKey key = keyIterator.next();
-                    if (key.isValid() && key.isReadable()) {
-                        keyIterator.remove();
-
-                        ByteBuffer receiveBuffer = ByteBufferPool.acquire();
-                        // Leave space for the header
-                        receiveBuffer.position(HEADER_SIZE);
-
-                        DatagramChannel inputChannel = (DatagramChannel) key.channel();
-                        // XXX: We should handle any IOExceptions here immediately,
-                        // but that probably won't happen with UDP
-                        int readBytes = inputChannel.read(receiveBuffer);
-
-                        Packet referencePacket = (Packet) key.attachment();
-                        referencePacket.updateUDPBuffer(receiveBuffer, readBytes);
-                        receiveBuffer.position(HEADER_SIZE + readBytes);
-
-                        outputQueue.offer(receiveBuffer);
-                    }
+                    keyIterator.remove();
+                    if (key.isValid() && key.isReadable())
+                        packets += drain(key);
                 }
+                VpnStats.UDP_INPUT_WAKEUPS.record(packets);
             }
-        } catch (InterruptedException e) {
             Log.i(TAG, "Stopping");
         } catch (IOException e) {
             Log.w(TAG, e.toString(), e);
         }
     }
+
+    /**
+     * Receive datagrams from one socket until it is empty, the per-key budget is spent or the
+     * device queue pauses, so a burst is handled in one wakeup
+     *
+     * @return datagrams queued towards the device
+     */
+    private int drain(SelectionKey key) {
+        int packets = 0;
+        while (packets < VpnConfig.UDP_READ_BUDGET && !outputQueue.isPaused()) {
+            ByteBuffer receiveBuffer = ByteBufferPool.acquire(ByteBufferPool.LARGE);
+            // Leave space for the header
+            receiveBuffer.position(HEADER_SIZE);
+
+            Packet referencePacket = udpNat.receive(key, receiveBuffer);
+            if (referencePacket == null) {
+                // Socket empty, or a late reply to an expired mapping that may have company
+                boolean empty = receiveBuffer.position() == HEADER_SIZE;
+                ByteBufferPool.release(receiveBuffer);
+                if (empty)
+                    break;
+                continue;
+            }
+            int readBytes = receiveBuffer.position() - HEADER_SIZE;
+
+            if (dnsResolver != null && referencePacket.getSourcePort() == DnsMessage.PORT)
+                dnsResolver.handleResponse(receiveBuffer, HEADER_SIZE, readBytes);
+            referencePacket.updateUDPBuffer(receiveBuffer, readBytes);
+            receiveBuffer.position(HEADER_SIZE + readBytes);
+
+            outputQueue.offer(receiveBuffer);
+            packets++;
+        }
+        return packets;
+    }
 }
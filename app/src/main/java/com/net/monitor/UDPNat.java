@@ -0,0 +1,285 @@
+package com.net.monitor;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Device UDP flows multiplexed over a few unconnected, protected sockets. Each flow is mapped to
+ * a socket on which no other flow talks to the same remote endpoint, so a reply is routed back by
+ * (socket, remote address, remote port) alone. Sockets beyond the base pool are only opened when
+ * every open one already has a flow to that endpoint, and closed again once their flows expired.
+ * <p>
+ * {@link #send} and {@link #expireIdle} run on the {@link UDPOutput} thread, {@link #receive} on
+ * the {@link UDPInput} thread.
+ */
+public class UDPNat {
+    private static final String TAG = UDPNat.class.getSimpleName();
+
+    private final SelectorTaskQueue selectorTasks;
+    private final VpnService vpnService;
+    // Indexed by NatSocket.index, null slots are free
+    private final NatSocket[] sockets = new NatSocket[VpnConfig.UDP_NAT_MAX_SOCKETS];
+    private int socketCount;
+    // Device flow (TCBKey.pack of destination and source port) -> mapping
+    private final FlowTable<Mapping> flows = new FlowTable<>(VpnConfig.UDP_NAT_MAX_FLOWS);
+    // TCBKey.pack(remote address, remote port, socket index) -> mapping
+    private final FlowTable<Mapping> replies = new FlowTable<>(VpnConfig.UDP_NAT_MAX_FLOWS);
+
+    private static class NatSocket {
+        final int index;
+        final DatagramChannel channel;
+        // Mappings using this socket, only touched by the sending thread
+        int flowCount;
+
+        NatSocket(int index, DatagramChannel channel) {
+            this.index = index;
+            this.channel = channel;
+        }
+    }
+
+    private static class Mapping {
+        final long flowKey;
+        final long replyKey;
+        final NatSocket socket;
+        final InetSocketAddress remoteAddress;
+        final long idleTimeout;
+        // Device-bound header template for replies
+        final Packet referencePacket;
+        volatile long lastActiveTime = TimingWheel.nowMillis();
+
+        Mapping(long flowKey, long replyKey, NatSocket socket, InetSocketAddress remoteAddress,
+                long idleTimeout, Packet referencePacket) {
+            this.flowKey = flowKey;
+            this.replyKey = replyKey;
+            this.socket = socket;
+            this.remoteAddress = remoteAddress;
+            this.idleTimeout = idleTimeout;
+            this.referencePacket = referencePacket;
+        }
+    }
+
+    /**
+     * Open the base pool
+     *
+     * @param selectorTasks runs registrations on the {@link UDPInput} thread
+     */
+    public UDPNat(SelectorTaskQueue selectorTasks, VpnService vpnService) throws IOException {
+        this.selectorTasks = selectorTasks;
+        this.vpnService = vpnService;
+        for (int i = 0; i < VpnConfig.UDP_NAT_SOCKETS; i++)
+            openSocket();
+    }
+
+    /**
+     * Send the payload of a device packet, positioned at its payload, upstream. Does not take
+     * ownership of the buffer.
+     */
+    public void send(Packet packet, ByteBuffer payloadBuffer) {
+        int destinationAddress = packet.getDestinationAddress();
+        int destinationPort = packet.getDestinationPort();
+        long flowKey = TCB.TCBKey.pack(destinationAddress, destinationPort, packet.getSourcePort());
+        Mapping mapping = flows.get(flowKey);
+        if (mapping == null) {
+            mapping = createMapping(packet, flowKey);
+            if (mapping == null) {
+                Log.w(TAG, "No socket free for " + TCB.TCBKey.toString(flowKey));
+                return;
+            }
+        }
+        mapping.lastActiveTime = TimingWheel.nowMillis();
+
+        try {
+            // Non-blocking, a full socket buffer drops the datagram like any congested hop would
+            mapping.socket.channel.send(payloadBuffer, mapping.remoteAddress);
+        } catch (IOException e) {
+            Log.e(TAG, "Network write error: " + TCB.TCBKey.toString(flowKey), e);
+            removeMapping(mapping);
+        }
+    }
+
+    /**
+     * Receive one datagram from a readable socket into buffer after the header space
+     *
+     * @return the header template of the device flow it belongs to, or null if it was dropped
+     */
+    public Packet receive(SelectionKey key, ByteBuffer buffer) {
+        NatSocket socket = (NatSocket) key.attachment();
+        InetSocketAddress remote;
+        try {
+            remote = (InetSocketAddress) socket.channel.receive(buffer);
+        } catch (IOException e) {
+            // Most likely closed by expireIdle() in the meantime
+            Log.w(TAG, "Network read error: " + e);
+            return null;
+        }
+        if (remote == null)
+            return null;
+
+        byte[] address = remote.getAddress().getAddress();
+        if (address.length != 4)
+            return null;
+        int remoteAddress = (address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16
+                | (address[2] & 0xFF) << 8 | (address[3] & 0xFF);
+        Mapping mapping = replies.get(TCB.TCBKey.pack(remoteAddress, remote.getPort(), socket.index));
+        if (mapping == null)
+            return null;
+        mapping.lastActiveTime = TimingWheel.nowMillis();
+        return mapping.referencePacket;
+    }
+
+    /**
+     * Drop mappings idle past their timeout and close the extra sockets left without flows
+     */
+    public void expireIdle() {
+        final long now = TimingWheel.nowMillis();
+        flows.forEach(new FlowTable.Visitor<Mapping>() {
+            @Override
+            public void visit(long key, Mapping mapping) {
+                if (now - mapping.lastActiveTime > mapping.idleTimeout)
+                    removeMapping(mapping);
+            }
+        });
+        for (int i = VpnConfig.UDP_NAT_SOCKETS; i < sockets.length; i++) {
+            final NatSocket socket = sockets[i];
+            if (socket != null && socket.flowCount == 0) {
+                sockets[i] = null;
+                socketCount--;
+                // Closed on the selector thread too, so its key is never cancelled under it
+                selectorTasks.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeChannel(socket.channel);
+                    }
+                });
+            }
+        }
+    }
+
+    public int getFlowCount() {
+        return flows.size();
+    }
+
+    public int getSocketCount() {
+        return socketCount;
+    }
+
+    @Override
+    public String toString() {
+        return "udp nat flows=" + flows.size() + " sockets=" + socketCount;
+    }
+
+    public void close() {
+        for (int i = 0; i < sockets.length; i++) {
+            if (sockets[i] != null) {
+                closeChannel(sockets[i].channel);
+                sockets[i] = null;
+            }
+        }
+        socketCount = 0;
+    }
+
+    private Mapping createMapping(Packet packet, long flowKey) {
+        if (flows.size() >= VpnConfig.UDP_NAT_MAX_FLOWS)
+            return null;
+        int destinationAddress = packet.getDestinationAddress();
+        int destinationPort = packet.getDestinationPort();
+
+        // First socket without a flow to this endpoint, keeps the pool compact
+        NatSocket socket = null;
+        int freeSlot = -1;
+        for (int i = 0; i < sockets.length && socket == null; i++) {
+            NatSocket candidate = sockets[i];
+            if (candidate == null) {
+                if (freeSlot < 0)
+                    freeSlot = i;
+            } else if (replies.get(TCB.TCBKey.pack(destinationAddress, destinationPort, i)) == null) {
+                socket = candidate;
+            }
+        }
+        if (socket == null) {
+            if (freeSlot < 0)
+                return null;
+            try {
+                socket = openSocket(freeSlot);
+            } catch (IOException e) {
+                Log.e(TAG, "Error opening socket", e);
+                return null;
+            }
+        }
+
+        InetSocketAddress remoteAddress;
+        try {
+            remoteAddress = new InetSocketAddress(Packet.intToInetAddress(destinationAddress), destinationPort);
+        } catch (IOException e) {
+            return null;
+        }
+        Packet referencePacket = packet.copyHeader();
+        referencePacket.swapSourceAndDestination();
+        long idleTimeout = destinationPort == DnsMessage.PORT
+                ? VpnConfig.UDP_DNS_IDLE_TIMEOUT_MS : VpnConfig.UDP_IDLE_TIMEOUT_MS;
+        Mapping mapping = new Mapping(flowKey, TCB.TCBKey.pack(destinationAddress, destinationPort, socket.index),
+                socket, remoteAddress, idleTimeout, referencePacket);
+        replies.put(mapping.replyKey, mapping);
+        flows.put(flowKey, mapping);
+        socket.flowCount++;
+        return mapping;
+    }
+
+    private void removeMapping(Mapping mapping) {
+        if (flows.remove(mapping.flowKey, mapping)) {
+            replies.remove(mapping.replyKey, mapping);
+            mapping.socket.flowCount--;
+        }
+    }
+
+    private void openSocket() throws IOException {
+        for (int i = 0; i < sockets.length; i++) {
+            if (sockets[i] == null) {
+                openSocket(i);
+                return;
+            }
+        }
+    }
+
+    private NatSocket openSocket(int index) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().bind(null);
+            vpnService.protect(channel.socket());
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            closeChannel(channel);
+            throw e;
+        }
+        final NatSocket socket = new NatSocket(index, channel);
+        sockets[index] = socket;
+        socketCount++;
+        // Sending works right away, replies wait in the socket buffer until this has run
+        selectorTasks.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.channel.register(selectorTasks.getSelector(), SelectionKey.OP_READ, socket);
+                } catch (ClosedChannelException e) {
+                    // Expired or shut down before it got registered
+                }
+            }
+        });
+        return socket;
+    }
+
+    private void closeChannel(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
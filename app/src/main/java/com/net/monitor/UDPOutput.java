@@ -18,41 +18,43 @@ package com.net.monitor;
 
 import android.util.Log;
 
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-public class UDPOutput implements Runnable
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends device UDP packets upstream. Parks while its queue is empty, woken by the queue's
+ * producers, and at least once per NAT expiry interval to drop idle mappings.
+ */
+public class UDPOutput implements Runnable, PacketQueue.Consumer
 {
     private static final String TAG = UDPOutput.class.getSimpleName();
 
-    private LocalVPNService vpnService;
-    private ConcurrentLinkedQueue<Packet> inputQueue;
-    private Selector selector;
-
-    private static final int MAX_CACHE_SIZE = 50;
-    private LRUCache<String, DatagramChannel> channelCache =
-            new LRUCache<>(MAX_CACHE_SIZE, new LRUCache.CleanupCallback<String, DatagramChannel>()
-            {
-                @Override
-                public void cleanup(Map.Entry<String, DatagramChannel> eldest)
-                {
-                    closeChannel(eldest.getValue());
-                }
-            });
-
-    public UDPOutput(ConcurrentLinkedQueue<Packet> inputQueue, Selector selector, LocalVPNService vpnService)
+    private PacketQueue inputQueue;
+    private UDPNat udpNat;
+    private DnsResolver dnsResolver;
+    // Reused for every packet handled by this thread
+    private final Packet packet = new Packet();
+    // Thread parked in run(), unparked by wakeup()
+    private volatile Thread consumerThread;
+
+    /**
+     * @param dnsResolver answers DNS queries locally when it can, may be null
+     */
+    public UDPOutput(PacketQueue inputQueue, UDPNat udpNat, DnsResolver dnsResolver)
     {
         this.inputQueue = inputQueue;
-        this.selector = selector;
-        this.vpnService = vpnService;
+        this.udpNat = udpNat;
+        this.dnsResolver = dnsResolver;
+        inputQueue.setConsumer(this);
+    }
+
+    @Override
+    public void wakeup()
+    {
+        Thread thread = consumerThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
     }
 
     @Override
@@ -63,99 +65,47 @@ public class UDPOutput implements Runnable
         {
 
             Thread currentThread = Thread.currentThread();
+            consumerThread = currentThread;
+            long lastExpiry = TimingWheel.nowMillis();
             while (true)
             {
-                Packet currentPacket;
+                ByteBuffer payloadBuffer;
                 // TODO: Block when not connected
                 do
                 {
-                    currentPacket = inputQueue.poll();
-                    if (currentPacket != null)
+                    long now = TimingWheel.nowMillis();
+                    if (now - lastExpiry >= VpnConfig.UDP_NAT_EXPIRY_INTERVAL_MS)
+                    {
+                        udpNat.expireIdle();
+                        lastExpiry = now;
+                    }
+                    payloadBuffer = inputQueue.poll();
+                    if (payloadBuffer != null)
                         break;
-                    Thread.sleep(10);
+                    // A wakeup between poll() and here leaves a permit, so park returns at once
+                    long untilExpiry = lastExpiry + VpnConfig.UDP_NAT_EXPIRY_INTERVAL_MS - now;
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, untilExpiry)));
                 } while (!currentThread.isInterrupted());
 
                 if (currentThread.isInterrupted())
                     break;
 
-                InetAddress destinationAddress = currentPacket.ip4Header.destinationAddress;
-                int destinationPort = currentPacket.udpHeader.destinationPort;
-                int sourcePort = currentPacket.udpHeader.sourcePort;
-
-                String ipAndPort = destinationAddress.getHostAddress() + ":" + destinationPort + ":" + sourcePort;
-                DatagramChannel outputChannel = channelCache.get(ipAndPort);
-                if (outputChannel == null) {
-                    outputChannel = DatagramChannel.open();
-                    try
-                    {
-                        outputChannel.connect(new InetSocketAddress(destinationAddress, destinationPort));
-                    }
-                    catch (IOException e)
-                    {
-                        Log.e(TAG, "Connection error: " + ipAndPort, e);
-                        closeChannel(outputChannel);
-                        ByteBufferPool.release(currentPacket.backingBuffer);
-                        continue;
-                    }
-                    outputChannel.configureBlocking(false);
-                    currentPacket.swapSourceAndDestination();
-
-                    selector.wakeup();
-                    outputChannel.register(selector, SelectionKey.OP_READ, currentPacket);
-
-                    vpnService.protect(outputChannel.socket());
-
-                    channelCache.put(ipAndPort, outputChannel);
-                }
-
-                try
-                {
-                    ByteBuffer payloadBuffer = currentPacket.backingBuffer;
-                    while (payloadBuffer.hasRemaining())
-                        outputChannel.write(payloadBuffer);
-                }
-                catch (IOException e)
+                Packet currentPacket = packet.wrap(payloadBuffer);
+                if (currentPacket.getDestinationPort() == DnsMessage.PORT && dnsResolver != null
+                        && dnsResolver.handleQuery(currentPacket))
                 {
-                    Log.e(TAG, "Network write error: " + ipAndPort, e);
-                    channelCache.remove(ipAndPort);
-                    closeChannel(outputChannel);
+                    ByteBufferPool.release(payloadBuffer);
+                    continue;
                 }
-                ByteBufferPool.release(currentPacket.backingBuffer);
+
+                udpNat.send(currentPacket, payloadBuffer);
+                ByteBufferPool.release(payloadBuffer);
             }
-        }
-        catch (InterruptedException e)
-        {
             Log.i(TAG, "Stopping");
         }
-        catch (IOException e)
-        {
-            Log.i(TAG, e.toString(), e);
-        }
         finally
         {
-            closeAll();
-        }
-    }
-
-    private void closeAll()
-    {
-        Iterator<Map.Entry<String, DatagramChannel>> it = channelCache.entrySet().iterator();
-        while (it.hasNext())
-        {
-            closeChannel(it.next().getValue());
-            it.remove();
-        }
-    }
-
-    private void closeChannel(DatagramChannel channel)
-    {
-        try
-        {
-            channel.close();
-        }
-        catch (IOException e)
-        {
-            // Ignore
+            consumerThread = null;
         }
     }
 }
@@ -7,6 +7,87 @@ public class VpnConfig {
     public static final String VPN_ROUTE_LIST = "219.133.60.160|14.17.41.181|120.198.203.174|183.232.93.154" +
             "|163.177.71.185|163.177.89.162|101.227.169.160|140.207.123.156|117.185.24.113|101.226.127.155" +
             "|140.207.186.158|117.185.30.170|140.207.127.23";
-    public static final int TCP_OUT_THREAD_NUM = 3;
-    public static final int TCP_IN_THREAD_NUM = 3;
+    // MTU of the tun interface, also caps the segments we send to the device
+    public static final int MTU = 1500;
+    // TCP reactor threads, each owning one selector and the flows hashed to it
+    public static final int TCP_SHARD_NUM = Runtime.getRuntime().availableProcessors();
+    // Max packets read from the tun per poll() wakeup before servicing writes again
+    public static final int TUN_READ_BATCH = 64;
+    // Max queued buffers written to the tun per wakeup before parking or reading again
+    public static final int TUN_WRITE_BATCH = 32;
+    // Run tun reads and writes on separate threads (VpnRead/VpnWrite) instead of one VpnEngine loop
+    public static final boolean TUN_FULL_DUPLEX = true;
+    // Interval of the packets/sec log, 0 to disable
+    public static final long STATS_INTERVAL_MS = 10000;
+    // Capacity in packets of the queues between pipeline stages, the watermarks are at 1/4 and 3/4
+    public static final int UDP_QUEUE_CAPACITY = 512;
+    public static final int TCP_SHARD_QUEUE_CAPACITY = 1024;
+    public static final int NETWORK_TO_DEVICE_QUEUE_CAPACITY = 2048;
+    // What producers do when a queue is full. Device packets can be dropped (TCP retransmits, UDP
+    // is lossy anyway), but TCP data towards the device must never be: we don't retransmit it
+    public static final PacketQueue.Policy DEVICE_TO_NETWORK_QUEUE_POLICY = PacketQueue.Policy.DROP_NEWEST;
+    public static final PacketQueue.Policy NETWORK_TO_DEVICE_QUEUE_POLICY = PacketQueue.Policy.PAUSE;
+    // Pool memory in bytes that out-of-order device segments may hold, per flow and in total
+    public static final int REASSEMBLY_FLOW_LIMIT = 256 * 1024;
+    public static final long REASSEMBLY_TOTAL_LIMIT = 8 * 1024 * 1024;
+    // Concurrent TCP flows, SYNs beyond this are refused with a RST
+    public static final int TCP_MAX_FLOWS = 4096;
+    // TCP flow timeouts: handshake, idle established flow, half-closed flow, TIME_WAIT linger
+    public static final long TCP_SYN_TIMEOUT_MS = 30 * 1000;
+    public static final long TCP_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    public static final long TCP_CLOSE_TIMEOUT_MS = 60 * 1000;
+    public static final long TCP_TIME_WAIT_MS = 2 * 1000;
+    // Resolution and size of each shard's timing wheel
+    public static final long TIMER_TICK_MS = 100;
+    public static final int TIMER_WHEEL_SIZE = 512;
+    // Direct memory the buffer pool may carve out of its slabs, beyond it buffers come from the heap
+    public static final long BUFFER_POOL_MAX_BYTES = 16 * 1024 * 1024;
+    // Free memory kept per size class once a burst is over, the rest is left to the GC
+    public static final int BUFFER_POOL_RETAIN_BYTES = 1024 * 1024;
+    // Track one in this many pooled buffers for leaks and double releases, 0 to disable
+    public static final int BUFFER_TRACKING_SAMPLE_RATE = 0;
+    // Memory carved per size class when the service starts, 0 to disable
+    public static final int BUFFER_POOL_PREWARM_BYTES = 128 * 1024;
+    // Input reactors drain a readable socket up to these budgets per wakeup: datagrams per UDP
+    // socket, bytes per TCP socket. See the pkt/wakeup stats when tuning them
+    public static final int UDP_READ_BUDGET = 64;
+    public static final int TCP_READ_BUDGET = 64 * 1024;
+    // Device data a flow queues for a socket that doesn't keep up, further segments are left
+    // unacknowledged until the socket has taken some of it
+    public static final int TCP_MAX_PENDING_WRITE_BYTES = 256 * 1024;
+    // Shared unconnected sockets UDP flows are multiplexed over, more are opened only while
+    // several flows talk to the same remote endpoint at once
+    public static final int UDP_NAT_SOCKETS = 4;
+    public static final int UDP_NAT_MAX_SOCKETS = 256;
+    // Concurrent UDP flows, datagrams of new flows beyond this are dropped
+    public static final int UDP_NAT_MAX_FLOWS = 4096;
+    // UDP mapping idle timeouts, DNS flows are done after one exchange
+    public static final long UDP_IDLE_TIMEOUT_MS = 60 * 1000;
+    public static final long UDP_DNS_IDLE_TIMEOUT_MS = 10 * 1000;
+    // How often UDPOutput looks for idle mappings
+    public static final long UDP_NAT_EXPIRY_INTERVAL_MS = 1000;
+    // Answer device DNS queries from a local cache and coalesce identical upstream queries
+    public static final boolean DNS_CACHE_ENABLED = true;
+    // Cached questions, least recently used ones are evicted first
+    public static final int DNS_CACHE_SIZE = 512;
+    // Upper bound on how long a response is served from the cache, whatever its TTL says
+    public static final long DNS_MAX_TTL_SECONDS = 60 * 60;
+    // Larger responses are not cached, 1232 is the usual EDNS buffer size so most answers fit
+    public static final int DNS_MAX_RESPONSE_SIZE = 1232;
+    // An upstream query unanswered for this long no longer holds back identical ones
+    public static final long DNS_PENDING_TIMEOUT_MS = 5 * 1000;
+    // Device queries parked behind one upstream query at most
+    public static final int DNS_MAX_WAITERS = 32;
+    // Cache file in the service's files dir, written on stop and read on start
+    public static final String DNS_CACHE_FILE = "dns.cache";
+    // Threads asking the monitors about intercepted payloads, off the TCP shards
+    public static final int INTERCEPT_THREADS = 2;
+    // Decisions waiting for a thread, beyond this payloads go upstream unasked
+    public static final int INTERCEPT_QUEUE_CAPACITY = 256;
+    // A decision not back after this long lets its payload through upstream
+    public static final long INTERCEPT_TIMEOUT_MS = 2 * 1000;
+    // Device data a flow parks behind a pending decision, further segments are left unacknowledged
+    public static final int INTERCEPT_MAX_PARKED_BYTES = 256 * 1024;
+    // Addresses whose DNS name is remembered for classifying TCP flows at SYN time
+    public static final int HOST_NAMES_SIZE = 1024;
 }
@@ -0,0 +1,104 @@
+package com.net.monitor;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import com.net.monitor.util.AppUtils;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Tun I/O loop that blocks in poll() on the tun descriptor and a {@link VpnWakeup} pipe instead
+ * of sleep-polling. Reads are driven by POLLIN on the tun, writes by buffers being offered to
+ * the network-to-device queue, so an idle VPN does not spin. Requires API 21 (android.system.Os).
+ */
+public class VpnEngine implements Runnable {
+    private static final String TAG = VpnEngine.class.getSimpleName();
+
+    private FileDescriptor vpnFileDescriptor;
+
+    private PacketQueue deviceToNetworkUDPQueue;
+    private TCPEngine tcpEngine;
+    private final Packet packet = new Packet();
+    private PacketQueue networkToDeviceQueue;
+
+    private final VpnWakeup wakeup;
+    private volatile boolean stopped;
+
+    public VpnEngine(FileDescriptor vpnFileDescriptor,
+                     PacketQueue deviceToNetworkUDPQueue,
+                     TCPEngine tcpEngine,
+                     PacketQueue networkToDeviceQueue) throws IOException {
+        this.vpnFileDescriptor = vpnFileDescriptor;
+        this.deviceToNetworkUDPQueue = deviceToNetworkUDPQueue;
+        this.tcpEngine = tcpEngine;
+        this.networkToDeviceQueue = networkToDeviceQueue;
+        this.wakeup = new VpnWakeup();
+        networkToDeviceQueue.setConsumer(wakeup);
+    }
+
+    public void stop() {
+        stopped = true;
+        wakeup.wakeup();
+    }
+
+    @Override
+    public void run() {
+        Log.i(TAG, "Started");
+
+        FileChannel vpnInput = new FileInputStream(vpnFileDescriptor).getChannel();
+        FileChannel vpnOutput = new FileOutputStream(vpnFileDescriptor).getChannel();
+
+        StructPollfd tunPollFd = new StructPollfd();
+        tunPollFd.fd = vpnFileDescriptor;
+        StructPollfd wakeupPollFd = new StructPollfd();
+        wakeupPollFd.fd = wakeup.getFileDescriptor();
+        wakeupPollFd.events = (short) OsConstants.POLLIN;
+        StructPollfd[] pollFds = new StructPollfd[]{tunPollFd, wakeupPollFd};
+
+        try {
+            ByteBuffer pendingWrite = null;
+            while (!stopped && !Thread.interrupted()) {
+                // Only ask for POLLOUT while the tun has refused a write, otherwise it is always writable
+                tunPollFd.events = (short) (pendingWrite == null
+                        ? OsConstants.POLLIN : OsConstants.POLLIN | OsConstants.POLLOUT);
+                // Don't block if the last pass stopped at the write batch limit
+                int timeout = pendingWrite == null && !networkToDeviceQueue.isEmpty() ? 0 : -1;
+                try {
+                    Os.poll(pollFds, timeout);
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.EINTR)
+                        continue;
+                    throw VpnWakeup.asIOException(e);
+                }
+
+                if ((wakeupPollFd.revents & OsConstants.POLLIN) != 0)
+                    wakeup.drain();
+                if ((tunPollFd.revents & (OsConstants.POLLERR | OsConstants.POLLHUP)) != 0) {
+                    Log.w(TAG, "Tun interface closed");
+                    break;
+                }
+                if ((tunPollFd.revents & OsConstants.POLLIN) != 0) {
+                    // Bounded so that a flood from the device cannot starve the write direction
+                    TunIo.readFromDevice(vpnInput, VpnConfig.TUN_READ_BATCH, packet,
+                            deviceToNetworkUDPQueue, tcpEngine);
+                }
+                pendingWrite = TunIo.writeToDevice(vpnOutput, networkToDeviceQueue, pendingWrite,
+                        VpnConfig.TUN_WRITE_BATCH);
+            }
+            Log.i(TAG, "Stopping");
+        } catch (IOException e) {
+            Log.w(TAG, e.toString(), e);
+        } finally {
+            AppUtils.closeResources(vpnInput, vpnOutput, wakeup);
+        }
+    }
+}
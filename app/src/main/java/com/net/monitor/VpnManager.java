@@ -1,12 +1,33 @@
 package com.net.monitor;
 
+import android.util.Log;
+
+import com.net.monitor.http.HttpRequest;
+import com.net.monitor.listener.IFlowClassifier;
+import com.net.monitor.listener.IHttpMonitor;
 import com.net.monitor.listener.IMonitor;
+import com.net.monitor.listener.IPayloadMonitor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Created by didi on 16/8/29.
+ * Monitor registry. Listener lists are copy-on-write arrays: registering is rare and copies under
+ * the monitor, dispatching happens on every TCP payload from all shards and takes no lock.
+ * Monitors are asked in registration order until one returns a response; one that throws is
+ * logged and skipped.
  */
 public class VpnManager {
-    private IMonitor mListener;
+    private static final String TAG = VpnManager.class.getSimpleName();
+
+    private static final IPayloadMonitor[] NO_PAYLOAD_MONITORS = new IPayloadMonitor[0];
+    private static final IHttpMonitor[] NO_HTTP_MONITORS = new IHttpMonitor[0];
+
+    private volatile IPayloadMonitor[] mPayloadMonitors = NO_PAYLOAD_MONITORS;
+    private volatile IHttpMonitor[] mHttpMonitors = NO_HTTP_MONITORS;
+    // The single legacy IMonitor, as registered in mPayloadMonitors
+    private MonitorAdapter mListenerAdapter;
 
     private VpnManager() {
 
@@ -19,21 +40,164 @@ public class VpnManager {
         return VpnManagerHelper.mInstance;
     }
 
+    /**
+     * Feeds device payloads to a legacy String listener
+     */
+    private static class MonitorAdapter implements IPayloadMonitor {
+        final IMonitor listener;
+
+        MonitorAdapter(IMonitor listener) {
+            this.listener = listener;
+        }
 
+        @Override
+        public byte[] onPayload(long flowKey, int direction, ByteBuffer payload) {
+            if (direction != DIRECTION_TO_NETWORK)
+                return null;
+            byte[] b = new byte[payload.remaining()];
+            payload.get(b);
+            return listener.onSendCallBack(new String(b));
+        }
+    }
+
+    /**
+     * Replaces the previously registered IMonitor, if any
+     */
     public synchronized void registerMonitorListener(IMonitor listener) {
         if(null != listener) {
-            mListener = listener;
+            unRegisterMonitorListener();
+            mListenerAdapter = new MonitorAdapter(listener);
+            addPayloadMonitor(mListenerAdapter);
         }
     }
 
     public synchronized void unRegisterMonitorListener() {
-        mListener = null;
+        if(null != mListenerAdapter) {
+            removePayloadMonitor(mListenerAdapter);
+            mListenerAdapter = null;
+        }
+    }
+
+    public synchronized void addPayloadMonitor(IPayloadMonitor monitor) {
+        IPayloadMonitor[] monitors = Arrays.copyOf(mPayloadMonitors, mPayloadMonitors.length + 1);
+        monitors[monitors.length - 1] = monitor;
+        mPayloadMonitors = monitors;
+    }
+
+    public synchronized void removePayloadMonitor(IPayloadMonitor monitor) {
+        mPayloadMonitors = remove(mPayloadMonitors, monitor, NO_PAYLOAD_MONITORS);
+    }
+
+    public synchronized void registerHttpMonitorListener(IHttpMonitor listener) {
+        if(null != listener) {
+            IHttpMonitor[] monitors = Arrays.copyOf(mHttpMonitors, mHttpMonitors.length + 1);
+            monitors[monitors.length - 1] = listener;
+            mHttpMonitors = monitors;
+        }
+    }
+
+    public synchronized void unRegisterHttpMonitorListener(IHttpMonitor listener) {
+        mHttpMonitors = remove(mHttpMonitors, listener, NO_HTTP_MONITORS);
     }
 
-    public synchronized byte[] notify(String payload) {
-        if(null == mListener) {
+    public boolean hasPayloadMonitor() {
+        return mPayloadMonitors.length > 0;
+    }
+
+    public boolean hasHttpMonitor() {
+        return mHttpMonitors.length > 0;
+    }
+
+    /**
+     * @param payload left untouched, monitors get a read-only view of its remaining bytes
+     * @return the first response returned, or null
+     */
+    public byte[] notify(long flowKey, int direction, ByteBuffer payload) {
+        IPayloadMonitor[] monitors = mPayloadMonitors;
+        if(monitors.length == 0) {
             return null;
         }
-        return mListener.onSendCallBack(payload);
+        ByteBuffer view = payload.slice().asReadOnlyBuffer();
+        for(IPayloadMonitor monitor : monitors) {
+            view.limit(view.capacity()).position(0);
+            byte[] result;
+            try {
+                result = monitor.onPayload(flowKey, direction, view);
+            } catch (RuntimeException e) {
+                // A broken monitor is skipped, it must not take down the calling reactor
+                Log.e(TAG, "Monitor failed: " + monitor, e);
+                continue;
+            }
+            if(null != result) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Classify a new TCP flow for all monitors: the most involved verdict wins, and monitors that
+     * aren't an {@link IFlowClassifier}, throw or return an unknown verdict inspect the flow. Monitors registered later don't
+     * change the verdict of existing flows.
+     *
+     * @return an {@link IFlowClassifier} verdict, PASSTHROUGH if there are no monitors
+     */
+    public int classify(int address, int port, String host) {
+        int verdict = IFlowClassifier.PASSTHROUGH;
+        for(IHttpMonitor monitor : mHttpMonitors) {
+            verdict = Math.max(verdict, classify(monitor, address, port, host));
+        }
+        for(IPayloadMonitor monitor : mPayloadMonitors) {
+            verdict = Math.max(verdict, classify(monitor, address, port, host));
+        }
+        return verdict;
+    }
+
+    private static int classify(Object monitor, int address, int port, String host) {
+        if(!(monitor instanceof IFlowClassifier)) {
+            return IFlowClassifier.INSPECT;
+        }
+        int verdict;
+        try {
+            verdict = ((IFlowClassifier) monitor).classify(address, port, host);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Classifier failed: " + monitor, e);
+            return IFlowClassifier.INSPECT;
+        }
+        if(verdict < IFlowClassifier.PASSTHROUGH || verdict > IFlowClassifier.MOCKED) {
+            Log.w(TAG, "Unknown verdict " + verdict + " from " + monitor);
+            return IFlowClassifier.INSPECT;
+        }
+        return verdict;
+    }
+
+    public byte[] notify(HttpRequest request) {
+        for(IHttpMonitor monitor : mHttpMonitors) {
+            byte[] result;
+            try {
+                result = monitor.onHttpRequest(request);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Monitor failed: " + monitor, e);
+                continue;
+            }
+            if(null != result) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static <T> T[] remove(T[] array, T item, T[] empty) {
+        for(int i = 0; i < array.length; i++) {
+            if(array[i] == item) {
+                if(array.length == 1) {
+                    return empty;
+                }
+                T[] copy = Arrays.copyOf(array, array.length - 1);
+                System.arraycopy(array, i + 1, copy, i, array.length - i - 1);
+                return copy;
+            }
+        }
+        return array;
     }
 }
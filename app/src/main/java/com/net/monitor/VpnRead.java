@@ -1,5 +1,9 @@
 package com.net.monitor;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
 import com.net.monitor.util.AppUtils;
@@ -7,27 +11,38 @@ import com.net.monitor.util.AppUtils;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Created by didi on 16/9/6.
+ * <p>
+ * Device -> network half of the full-duplex tun pipeline, paired with {@link VpnWrite}.
+ * Blocks in poll() on the tun until the device sends something.
  */
 public class VpnRead implements Runnable {
     private static final String TAG = VpnRead.class.getSimpleName();
     private FileDescriptor vpnFileDescriptor;
 
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue;
-    private ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue;
+    private PacketQueue deviceToNetworkUDPQueue;
+    private TCPEngine tcpEngine;
+    private final Packet packet = new Packet();
+
+    // Only used to unblock poll() on stop
+    private final VpnWakeup wakeup;
+    private volatile boolean stopped;
 
     public VpnRead(FileDescriptor vpnFileDescriptor,
-                   ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue,
-                   ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue) {
+                   PacketQueue deviceToNetworkUDPQueue,
+                   TCPEngine tcpEngine) throws IOException {
         this.vpnFileDescriptor = vpnFileDescriptor;
         this.deviceToNetworkUDPQueue = deviceToNetworkUDPQueue;
-        this.deviceToNetworkTCPQueue = deviceToNetworkTCPQueue;
+        this.tcpEngine = tcpEngine;
+        this.wakeup = new VpnWakeup();
+    }
+
+    public void stop() {
+        stopped = true;
+        wakeup.wakeup();
     }
 
     @Override
@@ -36,52 +51,40 @@ public class VpnRead implements Runnable {
 
         FileChannel vpnInput = new FileInputStream(vpnFileDescriptor).getChannel();
 
-        try {
-            ByteBuffer bufferToNetwork = null;
-            boolean dataSent = true;
-            while (!Thread.interrupted()) {
-                if (dataSent)
-                    bufferToNetwork = ByteBufferPool.acquire();
-                else
-                    bufferToNetwork.clear();
+        StructPollfd tunPollFd = new StructPollfd();
+        tunPollFd.fd = vpnFileDescriptor;
+        tunPollFd.events = (short) OsConstants.POLLIN;
+        StructPollfd wakeupPollFd = new StructPollfd();
+        wakeupPollFd.fd = wakeup.getFileDescriptor();
+        wakeupPollFd.events = (short) OsConstants.POLLIN;
+        StructPollfd[] pollFds = new StructPollfd[]{tunPollFd, wakeupPollFd};
 
-                // TODO: Block when not connected
-//                FileLock flin = null;
-//                flin = vpnInput.tryLock();
-//                //文件被其它线程使用
-//                if(null == flin) {
-//                    continue;
-//                }
+        try {
+            while (!stopped && !Thread.interrupted()) {
+                try {
+                    Os.poll(pollFds, -1);
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.EINTR)
+                        continue;
+                    throw VpnWakeup.asIOException(e);
+                }
 
-                int readBytes = vpnInput.read(bufferToNetwork);
-                if (readBytes > 0) {
-                    dataSent = true;
-                    bufferToNetwork.flip();
-                    Packet packet = new Packet(bufferToNetwork);
-                    if (packet.isUDP()) {
-                        deviceToNetworkUDPQueue.offer(packet);
-                    } else if (packet.isTCP()) {
-                        deviceToNetworkTCPQueue.offer(packet);
-                    } else {
-                        Log.w(TAG, "Unknown packet type");
-                        Log.w(TAG, packet.ip4Header.toString());
-                        dataSent = false;
-                    }
-                } else {
-                    dataSent = false;
+                if ((wakeupPollFd.revents & OsConstants.POLLIN) != 0)
+                    wakeup.drain();
+                if ((tunPollFd.revents & (OsConstants.POLLERR | OsConstants.POLLHUP)) != 0) {
+                    Log.w(TAG, "Tun interface closed");
+                    break;
+                }
+                if ((tunPollFd.revents & OsConstants.POLLIN) != 0) {
+                    TunIo.readFromDevice(vpnInput, VpnConfig.TUN_READ_BATCH, packet,
+                            deviceToNetworkUDPQueue, tcpEngine);
                 }
-//                flin.release();
-                // TODO: Sleep-looping is not very battery-friendly, consider blocking instead
-                // Confirm if throughput with ConcurrentQueue is really higher compared to BlockingQueue
-                if (!dataSent)
-                    Thread.sleep(10);
             }
-        } catch (InterruptedException e) {
             Log.i(TAG, "Stopping");
         } catch (IOException e) {
             Log.w(TAG, e.toString(), e);
         } finally {
-            AppUtils.closeResources(vpnInput);
+            AppUtils.closeResources(vpnInput, wakeup);
         }
     }
 }
@@ -10,7 +10,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Created by didi on 16/9/6.
@@ -20,17 +19,18 @@ public class VpnRunable implements Runnable{
 
         private FileDescriptor vpnFileDescriptor;
 
-        private ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue;
-        private ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue;
-        private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
+        private PacketQueue deviceToNetworkUDPQueue;
+        private TCPEngine tcpEngine;
+        private PacketQueue networkToDeviceQueue;
+        private final Packet packet = new Packet();
 
         public VpnRunable(FileDescriptor vpnFileDescriptor,
-                           ConcurrentLinkedQueue<Packet> deviceToNetworkUDPQueue,
-                           ConcurrentLinkedQueue<Packet> deviceToNetworkTCPQueue,
-                           ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue) {
+                           PacketQueue deviceToNetworkUDPQueue,
+                           TCPEngine tcpEngine,
+                           PacketQueue networkToDeviceQueue) {
             this.vpnFileDescriptor = vpnFileDescriptor;
             this.deviceToNetworkUDPQueue = deviceToNetworkUDPQueue;
-            this.deviceToNetworkTCPQueue = deviceToNetworkTCPQueue;
+            this.tcpEngine = tcpEngine;
             this.networkToDeviceQueue = networkToDeviceQueue;
         }
 
@@ -48,7 +48,7 @@ public class VpnRunable implements Runnable{
                 boolean dataReceived;
                 while (!Thread.interrupted()) {
                     if (dataSent)
-                        bufferToNetwork = ByteBufferPool.acquire();
+                        bufferToNetwork = ByteBufferPool.acquire(ByteBufferPool.MTU);
                     else
                         bufferToNetwork.clear();
 
@@ -56,15 +56,16 @@ public class VpnRunable implements Runnable{
                     int readBytes = vpnInput.read(bufferToNetwork);
                     if (readBytes > 0) {
                         dataSent = true;
+                        VpnStats.onUplinkPacket();
                         bufferToNetwork.flip();
-                        Packet packet = new Packet(bufferToNetwork);
+                        packet.wrap(bufferToNetwork);
                         if (packet.isUDP()) {
-                            deviceToNetworkUDPQueue.offer(packet);
+                            deviceToNetworkUDPQueue.offer(bufferToNetwork);
                         } else if (packet.isTCP()) {
-                            deviceToNetworkTCPQueue.offer(packet);
+                            tcpEngine.dispatch(packet);
                         } else {
                             Log.w(TAG, "Unknown packet type");
-                            Log.w(TAG, packet.ip4Header.toString());
+                            Log.w(TAG, packet.toString());
                             dataSent = false;
                         }
                     } else {
@@ -77,6 +78,7 @@ public class VpnRunable implements Runnable{
                         while (bufferFromNetwork.hasRemaining())
                             vpnOutput.write(bufferFromNetwork);
                         dataReceived = true;
+                        VpnStats.onDownlinkPacket();
 
                         ByteBufferPool.release(bufferFromNetwork);
                     } else {
@@ -0,0 +1,175 @@
+package com.net.monitor;
+
+import android.util.Log;
+
+import com.net.monitor.listener.IFlowClassifier;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline counters, periodically turned into rates by {@link Reporter}
+ */
+public class VpnStats {
+    private static final String TAG = VpnStats.class.getSimpleName();
+
+    // Device -> network packets read from the tun
+    private static final AtomicLong uplinkPackets = new AtomicLong();
+    // Network -> device packets written to the tun
+    private static final AtomicLong downlinkPackets = new AtomicLong();
+
+    // TCP flows by IFlowClassifier verdict since the process started
+    private static final AtomicLong[] flowVerdicts = {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+
+    // Packets handled per input reactor wakeup, to tune the read budgets in VpnConfig
+    public static final WakeupCounter UDP_INPUT_WAKEUPS = new WakeupCounter("udp-in");
+    public static final WakeupCounter TCP_INPUT_WAKEUPS = new WakeupCounter("tcp-in");
+
+    // Pipeline queues whose occupancy and drops are reported
+    private static final List<PacketQueue> queues = new CopyOnWriteArrayList<>();
+    // Reported while the service runs, the DNS cache is optional
+    private static volatile UDPNat udpNat;
+    private static volatile DnsResolver dnsResolver;
+
+    private static volatile long uplinkPacketsPerSecond;
+    private static volatile long downlinkPacketsPerSecond;
+
+    public static void onUplinkPacket() {
+        uplinkPackets.incrementAndGet();
+    }
+
+    public static void onDownlinkPacket() {
+        downlinkPackets.incrementAndGet();
+    }
+
+    public static void onFlowClassified(int verdict) {
+        flowVerdicts[verdict].incrementAndGet();
+    }
+
+    /**
+     * @param verdict an {@link IFlowClassifier} verdict
+     */
+    public static long getFlowCount(int verdict) {
+        return flowVerdicts[verdict].get();
+    }
+
+    public static void registerQueue(PacketQueue queue) {
+        queues.add(queue);
+    }
+
+    public static void clearQueues() {
+        queues.clear();
+    }
+
+    public static void setUdpNat(UDPNat nat) {
+        udpNat = nat;
+    }
+
+    public static void setDnsResolver(DnsResolver resolver) {
+        dnsResolver = resolver;
+    }
+
+    public static List<PacketQueue> getQueues() {
+        return queues;
+    }
+
+    public static long getUplinkPackets() {
+        return uplinkPackets.get();
+    }
+
+    public static long getDownlinkPackets() {
+        return downlinkPackets.get();
+    }
+
+    public static long getUplinkPacketsPerSecond() {
+        return uplinkPacketsPerSecond;
+    }
+
+    public static long getDownlinkPacketsPerSecond() {
+        return downlinkPacketsPerSecond;
+    }
+
+    /**
+     * Wakeups of a reactor and the packets each one handled, reset on every report
+     */
+    public static class WakeupCounter {
+        private final String name;
+        private final AtomicLong wakeups = new AtomicLong();
+        private final AtomicLong packets = new AtomicLong();
+        private final AtomicInteger maxPackets = new AtomicInteger();
+
+        WakeupCounter(String name) {
+            this.name = name;
+        }
+
+        public void record(int wakeupPackets) {
+            wakeups.incrementAndGet();
+            packets.addAndGet(wakeupPackets);
+            int max;
+            while (wakeupPackets > (max = maxPackets.get()) && !maxPackets.compareAndSet(max, wakeupPackets)) {
+                // Retry
+            }
+        }
+
+        String drain() {
+            long wakeupCount = wakeups.getAndSet(0);
+            long packetCount = packets.getAndSet(0);
+            int max = maxPackets.getAndSet(0);
+            return name + " wakeups=" + wakeupCount + " pkt/wakeup avg=" + (wakeupCount == 0 ? 0 : packetCount / (double) wakeupCount)
+                    + " max=" + max;
+        }
+    }
+
+    public static class Reporter implements Runnable {
+        private final long intervalMillis;
+
+        public Reporter(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void run() {
+            long lastUplink = uplinkPackets.get();
+            long lastDownlink = downlinkPackets.get();
+            long lastTime = System.nanoTime();
+            try {
+                while (!Thread.interrupted()) {
+                    Thread.sleep(intervalMillis);
+
+                    long uplink = uplinkPackets.get();
+                    long downlink = downlinkPackets.get();
+                    long now = System.nanoTime();
+                    long elapsedNanos = Math.max(1, now - lastTime);
+                    uplinkPacketsPerSecond = (uplink - lastUplink) * 1000000000L / elapsedNanos;
+                    downlinkPacketsPerSecond = (downlink - lastDownlink) * 1000000000L / elapsedNanos;
+                    lastUplink = uplink;
+                    lastDownlink = downlink;
+                    lastTime = now;
+
+                    Log.i(TAG, "up " + uplinkPacketsPerSecond + " pkt/s, down " + downlinkPacketsPerSecond + " pkt/s");
+                    Log.i(TAG, UDP_INPUT_WAKEUPS.drain());
+                    Log.i(TAG, TCP_INPUT_WAKEUPS.drain());
+                    Log.i(TAG, "tcp flows passthrough=" + getFlowCount(IFlowClassifier.PASSTHROUGH)
+                            + " inspect=" + getFlowCount(IFlowClassifier.INSPECT)
+                            + " mocked=" + getFlowCount(IFlowClassifier.MOCKED));
+                    for (PacketQueue queue : queues)
+                        Log.i(TAG, queue.toString());
+                    Log.i(TAG, "reassembly " + TCPReassembly.getTotalBytes() + " bytes");
+                    Log.i(TAG, ByteBufferPool.getStats());
+                    if (BufferTracker.ENABLED)
+                        Log.i(TAG, BufferTracker.getStats());
+                    UDPNat nat = udpNat;
+                    if (nat != null)
+                        Log.i(TAG, nat.toString());
+                    DnsResolver resolver = dnsResolver;
+                    if (resolver != null)
+                        Log.i(TAG, resolver.toString());
+                }
+            } catch (InterruptedException e) {
+                Log.i(TAG, "Stopping");
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.net.monitor;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Self-pipe used to wake a thread blocked in poll() on the tun descriptor.
+ * Wakeups are coalesced, so the pipe holds at most one unread byte at a time.
+ */
+public class VpnWakeup implements PacketQueue.Consumer, Closeable {
+    private static final String TAG = VpnWakeup.class.getSimpleName();
+    private static final byte[] SIGNAL = new byte[]{1};
+
+    private final FileDescriptor readFd;
+    private final FileDescriptor writeFd;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final byte[] drainBuffer = new byte[16];
+    private boolean closed;
+
+    public VpnWakeup() throws IOException {
+        try {
+            FileDescriptor[] fds = Os.pipe();
+            readFd = fds[0];
+            writeFd = fds[1];
+        } catch (ErrnoException e) {
+            throw asIOException(e);
+        }
+    }
+
+    public FileDescriptor getFileDescriptor() {
+        return readFd;
+    }
+
+    @Override
+    public void wakeup() {
+        if (!pending.compareAndSet(false, true))
+            return;
+        synchronized (this) {
+            if (closed)
+                return;
+            try {
+                Os.write(writeFd, SIGNAL, 0, 1);
+            } catch (ErrnoException | InterruptedIOException e) {
+                Log.w(TAG, e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Consume the pending wakeup. Must only be called once poll() reported the pipe readable,
+     * and before the woken thread looks at its queues, so that no wakeup is lost.
+     */
+    public void drain() throws IOException {
+        try {
+            Os.read(readFd, drainBuffer, 0, drainBuffer.length);
+        } catch (ErrnoException e) {
+            throw asIOException(e);
+        }
+        pending.set(false);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                Os.close(readFd);
+                Os.close(writeFd);
+            } catch (ErrnoException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * ErrnoException.rethrowAsIOException() is hidden from apps, wrap it the same way
+     */
+    static IOException asIOException(ErrnoException e) {
+        IOException io = new IOException(e.getMessage());
+        io.initCause(e);
+        return io;
+    }
+}
@@ -1,5 +1,9 @@
 package com.net.monitor;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
 import com.net.monitor.util.AppUtils;
@@ -9,23 +13,35 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Created by didi on 16/9/6.
+ * <p>
+ * Network -> device half of the full-duplex tun pipeline, paired with {@link VpnRead}.
+ * Parks in poll() until the queue wakes it, then drains up to
+ * {@link VpnConfig#TUN_WRITE_BATCH} buffers per pass.
  */
 public class VpnWrite implements Runnable {
     private static final String TAG = VpnWrite.class.getSimpleName();
 
     private FileDescriptor vpnFileDescriptor;
 
-    private ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue;
+    private PacketQueue networkToDeviceQueue;
+
+    private final VpnWakeup wakeup;
+    private volatile boolean stopped;
 
     public VpnWrite(FileDescriptor vpnFileDescriptor,
-                    ConcurrentLinkedQueue<ByteBuffer> networkToDeviceQueue) {
+                    PacketQueue networkToDeviceQueue) throws IOException {
         this.vpnFileDescriptor = vpnFileDescriptor;
         this.networkToDeviceQueue = networkToDeviceQueue;
+        this.wakeup = new VpnWakeup();
+        networkToDeviceQueue.setConsumer(wakeup);
+    }
+
+    public void stop() {
+        stopped = true;
+        wakeup.wakeup();
     }
 
     @Override
@@ -34,34 +50,42 @@ public class VpnWrite implements Runnable {
 
         FileChannel vpnOutput = new FileOutputStream(vpnFileDescriptor).getChannel();
 
-        try {
-            boolean dataReceived;
-            while (!Thread.interrupted()) {
-                ByteBuffer bufferFromNetwork = networkToDeviceQueue.poll();
-                if (bufferFromNetwork != null) {
-                    bufferFromNetwork.flip();
+        StructPollfd tunPollFd = new StructPollfd();
+        tunPollFd.fd = vpnFileDescriptor;
+        StructPollfd wakeupPollFd = new StructPollfd();
+        wakeupPollFd.fd = wakeup.getFileDescriptor();
+        wakeupPollFd.events = (short) OsConstants.POLLIN;
+        StructPollfd[] pollFds = new StructPollfd[]{tunPollFd, wakeupPollFd};
 
+        try {
+            ByteBuffer pendingWrite = null;
+            while (!stopped && !Thread.interrupted()) {
+                // Park only when there is nothing we could write right now
+                if (pendingWrite != null || networkToDeviceQueue.isEmpty()) {
+                    tunPollFd.events = (short) (pendingWrite == null ? 0 : OsConstants.POLLOUT);
+                    try {
+                        Os.poll(pollFds, -1);
+                    } catch (ErrnoException e) {
+                        if (e.errno == OsConstants.EINTR)
+                            continue;
+                        throw VpnWakeup.asIOException(e);
+                    }
 
-                    while (bufferFromNetwork.hasRemaining())
-                        vpnOutput.write(bufferFromNetwork);
-                    dataReceived = true;
-//                    lock.release();
-                    ByteBufferPool.release(bufferFromNetwork);
-                } else {
-                    dataReceived = false;
+                    if ((wakeupPollFd.revents & OsConstants.POLLIN) != 0)
+                        wakeup.drain();
+                    if ((tunPollFd.revents & (OsConstants.POLLERR | OsConstants.POLLHUP)) != 0) {
+                        Log.w(TAG, "Tun interface closed");
+                        break;
+                    }
                 }
-
-                // TODO: Sleep-looping is not very battery-friendly, consider blocking instead
-                // Confirm if throughput with ConcurrentQueue is really higher compared to BlockingQueue
-                if (!dataReceived)
-                    Thread.sleep(10);
+                pendingWrite = TunIo.writeToDevice(vpnOutput, networkToDeviceQueue, pendingWrite,
+                        VpnConfig.TUN_WRITE_BATCH);
             }
-        } catch (InterruptedException e) {
             Log.i(TAG, "Stopping");
         } catch (IOException e) {
             Log.w(TAG, e.toString(), e);
         } finally {
-            AppUtils.closeResources(vpnOutput);
+            AppUtils.closeResources(vpnOutput, wakeup);
         }
     }
 }
@@ -0,0 +1,107 @@
+package com.net.monitor.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Request line and selected headers of an HTTP/1.x request, as offsets into the buffer it was
+ * parsed from. Reused by {@link HttpRequestParser}, so the offsets are only valid until the next
+ * parse; the String getters are the only allocating calls.
+ */
+public class HttpRequest {
+    public static final int GET = 1;
+    public static final int POST = 2;
+    public static final int PUT = 3;
+    public static final int DELETE = 4;
+    public static final int HEAD = 5;
+    public static final int OPTIONS = 6;
+    public static final int PATCH = 7;
+    public static final int CONNECT = 8;
+    public static final int TRACE = 9;
+
+    public ByteBuffer buffer;
+    // One of the method constants above
+    public int method;
+    // Request target as sent, including any query string
+    public int pathStart, pathEnd;
+    // End of the path without the query string
+    public int queryStart;
+    public boolean http11;
+    // Header values, start is -1 when the header is missing
+    public int hostStart = -1, hostEnd;
+    public int contentTypeStart = -1, contentTypeEnd;
+    public long contentLength = -1;
+    // Offset of the body, -1 if the header block didn't end within the buffer
+    public int headerEnd = -1;
+
+    void reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        method = 0;
+        pathStart = pathEnd = queryStart = 0;
+        http11 = false;
+        hostStart = -1;
+        hostEnd = 0;
+        contentTypeStart = -1;
+        contentTypeEnd = 0;
+        contentLength = -1;
+        headerEnd = -1;
+    }
+
+    public boolean isComplete() {
+        return headerEnd >= 0;
+    }
+
+    public String getPath() {
+        return slice(pathStart, pathEnd);
+    }
+
+    /**
+     * @return the path up to the query string
+     */
+    public String getPathWithoutQuery() {
+        return slice(pathStart, queryStart);
+    }
+
+    public String getHost() {
+        return hostStart < 0 ? null : slice(hostStart, hostEnd);
+    }
+
+    public String getContentType() {
+        return contentTypeStart < 0 ? null : slice(contentTypeStart, contentTypeEnd);
+    }
+
+    /**
+     * @return true if the path up to the query string equals value, without allocating
+     */
+    public boolean pathEquals(String value) {
+        return regionEquals(pathStart, queryStart, value, false);
+    }
+
+    /**
+     * @return true if the Host header equals value, ignoring case and without allocating
+     */
+    public boolean hostEquals(String value) {
+        return hostStart >= 0 && regionEquals(hostStart, hostEnd, value, true);
+    }
+
+    private boolean regionEquals(int start, int end, String value, boolean ignoreCase) {
+        if (end - start != value.length())
+            return false;
+        for (int i = 0; i < value.length(); i++) {
+            int c = buffer.get(start + i) & 0xFF;
+            int v = value.charAt(i);
+            if (c != v && !(ignoreCase && HttpRequestParser.toLower(c) == HttpRequestParser.toLower(v)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Request targets and header values are ASCII, anything else is passed through byte by byte
+     */
+    private String slice(int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++)
+            chars[i - start] = (char) (buffer.get(i) & 0xFF);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,200 @@
+package com.net.monitor.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation-free parser for the request line and headers of HTTP/1.x requests, reading the
+ * buffer in place. Anything that doesn't start with a known method followed by a space is
+ * rejected within its first few bytes, so TLS and other binary payloads cost next to nothing.
+ */
+public class HttpRequestParser {
+    // Not a request head, e.g. TLS, another protocol, or the body of an earlier request
+    public static final int NOT_HTTP = 0;
+    // Request line parsed, header block cut off by the end of the buffer
+    public static final int INCOMPLETE = 1;
+    public static final int COMPLETE = 2;
+
+    private static final byte[][] METHODS = {
+            null,
+            ascii("GET"), ascii("POST"), ascii("PUT"), ascii("DELETE"), ascii("HEAD"),
+            ascii("OPTIONS"), ascii("PATCH"), ascii("CONNECT"), ascii("TRACE"),
+    };
+    private static final int MAX_METHOD_LENGTH = 7;
+    private static final byte[] VERSION_PREFIX = ascii("HTTP/1.");
+
+    private static final byte[] HOST = ascii("host");
+    private static final byte[] CONTENT_LENGTH = ascii("content-length");
+    private static final byte[] CONTENT_TYPE = ascii("content-type");
+
+    private HttpRequestParser() {
+    }
+
+    /**
+     * Parse the request head at the buffer's position up to its limit into request. The buffer's
+     * position and limit are left alone.
+     *
+     * @return {@link #NOT_HTTP}, {@link #INCOMPLETE} or {@link #COMPLETE}
+     */
+    public static int parse(ByteBuffer buffer, HttpRequest request) {
+        request.reset(buffer);
+        int position = buffer.position();
+        int limit = buffer.limit();
+
+        // Method, matched against the known ones as soon as the space is seen
+        int methodStart = position;
+        while (position < limit && buffer.get(position) != ' ') {
+            int c = buffer.get(position) & 0xFF;
+            if (c < 'A' || c > 'Z' || position - methodStart >= MAX_METHOD_LENGTH)
+                return NOT_HTTP;
+            position++;
+        }
+        if (position == limit)
+            return NOT_HTTP;
+        request.method = matchMethod(buffer, methodStart, position);
+        if (request.method == 0)
+            return NOT_HTTP;
+        position++;
+
+        // Request target, printable ASCII up to the next space
+        request.pathStart = position;
+        request.queryStart = -1;
+        while (position < limit) {
+            int c = buffer.get(position) & 0xFF;
+            if (c == ' ')
+                break;
+            if (c < 0x21 || c > 0x7E)
+                return NOT_HTTP;
+            if (c == '?' && request.queryStart < 0)
+                request.queryStart = position;
+            position++;
+        }
+        if (position == limit || position == request.pathStart)
+            return NOT_HTTP;
+        request.pathEnd = position;
+        if (request.queryStart < 0)
+            request.queryStart = position;
+        position++;
+
+        // "HTTP/1.x" and the end of the line
+        if (limit - position < VERSION_PREFIX.length + 1
+                || !regionEquals(buffer, position, position + VERSION_PREFIX.length, VERSION_PREFIX))
+            return NOT_HTTP;
+        position += VERSION_PREFIX.length;
+        request.http11 = buffer.get(position) == '1';
+        position = skipLineEnd(buffer, position + 1, limit);
+        if (position < 0)
+            return NOT_HTTP;
+
+        return parseHeaders(buffer, position, limit, request);
+    }
+
+    private static int parseHeaders(ByteBuffer buffer, int position, int limit, HttpRequest request) {
+        while (position < limit) {
+            int c = buffer.get(position);
+            if (c == '\r' || c == '\n') {
+                int end = skipLineEnd(buffer, position, limit);
+                if (end < 0)
+                    return INCOMPLETE;
+                request.headerEnd = end;
+                return COMPLETE;
+            }
+
+            int nameStart = position;
+            while (position < limit && buffer.get(position) != ':' && buffer.get(position) != '\n')
+                position++;
+            if (position == limit)
+                return INCOMPLETE;
+            if (buffer.get(position) != ':')
+                return INCOMPLETE; // Malformed header line, stop at what we have
+            int nameEnd = position++;
+
+            while (position < limit && (buffer.get(position) == ' ' || buffer.get(position) == '\t'))
+                position++;
+            int valueStart = position;
+            while (position < limit && buffer.get(position) != '\r' && buffer.get(position) != '\n')
+                position++;
+            if (position == limit)
+                return INCOMPLETE;
+            int valueEnd = position;
+            while (valueEnd > valueStart && (buffer.get(valueEnd - 1) == ' ' || buffer.get(valueEnd - 1) == '\t'))
+                valueEnd--;
+            position = skipLineEnd(buffer, position, limit);
+            if (position < 0)
+                return INCOMPLETE;
+
+            if (regionEqualsIgnoreCase(buffer, nameStart, nameEnd, HOST)) {
+                request.hostStart = valueStart;
+                request.hostEnd = valueEnd;
+            } else if (regionEqualsIgnoreCase(buffer, nameStart, nameEnd, CONTENT_TYPE)) {
+                request.contentTypeStart = valueStart;
+                request.contentTypeEnd = valueEnd;
+            } else if (regionEqualsIgnoreCase(buffer, nameStart, nameEnd, CONTENT_LENGTH)) {
+                request.contentLength = parseLength(buffer, valueStart, valueEnd);
+            }
+        }
+        return INCOMPLETE;
+    }
+
+    static int toLower(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static int matchMethod(ByteBuffer buffer, int start, int end) {
+        for (int i = 1; i < METHODS.length; i++) {
+            if (regionEquals(buffer, start, end, METHODS[i]))
+                return i;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the offset after the CRLF or bare LF at position, -1 if there is none
+     */
+    private static int skipLineEnd(ByteBuffer buffer, int position, int limit) {
+        if (position < limit && buffer.get(position) == '\r')
+            position++;
+        if (position < limit && buffer.get(position) == '\n')
+            return position + 1;
+        return -1;
+    }
+
+    private static long parseLength(ByteBuffer buffer, int start, int end) {
+        if (start == end || end - start > 18)
+            return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int c = buffer.get(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean regionEquals(ByteBuffer buffer, int start, int end, byte[] value) {
+        if (end - start != value.length)
+            return false;
+        for (int i = 0; i < value.length; i++) {
+            if (buffer.get(start + i) != value[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean regionEqualsIgnoreCase(ByteBuffer buffer, int start, int end, byte[] lowerValue) {
+        if (end - start != lowerValue.length)
+            return false;
+        for (int i = 0; i < lowerValue.length; i++) {
+            if (toLower(buffer.get(start + i)) != lowerValue[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) value.charAt(i);
+        return bytes;
+    }
+}
@@ -0,0 +1,25 @@
+package com.net.monitor.listener;
+
+/**
+ * Optionally implemented by an {@link IHttpMonitor} or {@link IPayloadMonitor} to say which TCP
+ * flows it wants to see. Asked once per connection when the device's SYN arrives, so the verdict
+ * can only rest on the destination and on the host name the device resolved it from. Monitors
+ * that don't implement it see every flow.
+ */
+public interface IFlowClassifier {
+    // The monitor has no interest in the flow
+    int PASSTHROUGH = 0;
+    // The monitor wants to see the flow's payloads
+    int INSPECT = 1;
+    // The monitor answers every request of the flow itself, no upstream connection is made
+    int MOCKED = 2;
+
+    /**
+     * Runs on a TCP shard thread for every new connection, so it must be quick
+     *
+     * @param address destination IPv4 address
+     * @param host    name the device resolved address from, null if unknown
+     * @return {@link #PASSTHROUGH}, {@link #INSPECT} or {@link #MOCKED}
+     */
+    int classify(int address, int port, String host);
+}
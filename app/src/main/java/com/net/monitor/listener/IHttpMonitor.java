@@ -0,0 +1,18 @@
+package com.net.monitor.listener;
+
+import com.net.monitor.http.HttpRequest;
+
+/**
+ * Sees the head of every HTTP request sent by the device, see
+ * {@link com.net.monitor.VpnManager#registerHttpMonitorListener(IHttpMonitor)}
+ */
+public interface IHttpMonitor {
+    /**
+     * Runs on the interception executor for every request, its flow waits for the answer. The
+     * request only points into the payload and is released once this returns; materialize strings
+     * only for a match.
+     *
+     * @return the body of a mock response for the request, or null to let it through
+     */
+    byte[] onHttpRequest(HttpRequest request);
+}
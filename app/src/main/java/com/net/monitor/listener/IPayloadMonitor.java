@@ -0,0 +1,26 @@
+package com.net.monitor.listener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sees the TCP payloads of every flow, see
+ * {@link com.net.monitor.VpnManager#addPayloadMonitor(IPayloadMonitor)}
+ */
+public interface IPayloadMonitor {
+    // Device -> network, a response returned for it is sent to the device instead
+    int DIRECTION_TO_NETWORK = 0;
+    // Network -> device, observed only
+    int DIRECTION_TO_DEVICE = 1;
+
+    /**
+     * Device payloads are offered on the interception executor, their flow waits for the answer;
+     * network payloads on a TCP shard thread, so they must be handled quickly. The buffer is a
+     * read-only view that is only valid during the call.
+     *
+     * @param flowKey   the flow's {@link com.net.monitor.TCB.TCBKey}
+     * @param direction {@link #DIRECTION_TO_NETWORK} or {@link #DIRECTION_TO_DEVICE}
+     * @return the body of a mock response, or null to let the payload through and ask the next
+     * monitor
+     */
+    byte[] onPayload(long flowKey, int direction, ByteBuffer payload);
+}
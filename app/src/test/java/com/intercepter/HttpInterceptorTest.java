@@ -0,0 +1,74 @@
+package com.intercepter;
+
+import com.net.monitor.VpnManager;
+import com.net.monitor.listener.IFlowClassifier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Flow classification by {@link HttpInterceptor}, as the TCP shards ask for it at SYN time.
+ */
+public class HttpInterceptorTest {
+    private static final int ADDRESS = 0x5DB8D822;
+
+    private HttpInterceptor interceptor;
+    private RouteIndex previousRoutes;
+
+    @Before
+    public void setUp() {
+        previousRoutes = ResponseManager.getInstance().getRoutes();
+        interceptor = new HttpInterceptor("api.udache.com", new ConcurrentHashMap<String, String>());
+        interceptor.startIntercept();
+    }
+
+    @After
+    public void tearDown() {
+        interceptor.stopIntercept();
+        ResponseManager.getInstance().setRoutes(previousRoutes);
+    }
+
+    private static int classify(int port, String host) {
+        return VpnManager.getInstance().classify(ADDRESS, port, host);
+    }
+
+    @Test
+    public void anyHostRouteInspectsKnownOtherHosts() {
+        // What GetApiTask registers for every name.txt response
+        ResponseManager.getInstance().setRoutes(new RouteIndex.Builder()
+                .add("POST", RouteIndex.ANY, "/**/dGetListenMode", "dGetListenMode")
+                .build());
+        assertEquals(IFlowClassifier.INSPECT, classify(80, "other.example.com"));
+        assertEquals(IFlowClassifier.INSPECT, classify(80, null));
+    }
+
+    @Test
+    public void otherHostsPassThroughWithoutRoutes() {
+        ResponseManager.getInstance().setRoutes(new RouteIndex.Builder()
+                .add("GET", "mock.example.com", "/api/**", "api")
+                .build());
+        assertEquals(IFlowClassifier.PASSTHROUGH, classify(80, "other.example.com"));
+        assertEquals(IFlowClassifier.INSPECT, classify(80, "mock.example.com"));
+        assertEquals(IFlowClassifier.INSPECT, classify(80, "api.udache.com"));
+    }
+
+    @Test
+    public void mockAllAnswersTargetHostLocally() {
+        interceptor.setMockAll(true);
+        assertEquals(IFlowClassifier.MOCKED, classify(80, "api.udache.com"));
+        assertEquals(IFlowClassifier.PASSTHROUGH, classify(80, "other.example.com"));
+    }
+
+    @Test
+    public void httpsPassesThrough() {
+        ResponseManager.getInstance().setRoutes(new RouteIndex.Builder()
+                .add("POST", RouteIndex.ANY, "/**/dGetListenMode", "dGetListenMode")
+                .build());
+        assertEquals(IFlowClassifier.PASSTHROUGH, classify(443, "api.udache.com"));
+    }
+}
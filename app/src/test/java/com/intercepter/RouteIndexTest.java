@@ -0,0 +1,151 @@
+package com.intercepter;
+
+import com.net.monitor.http.HttpRequest;
+import com.net.monitor.http.HttpRequestParser;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Precedence rules of {@link RouteIndex}, matched against parsed request heads.
+ */
+public class RouteIndexTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static HttpRequest request(String method, String host, String target) {
+        String head = method + " " + target + " HTTP/1.1\r\n"
+                + (host == null ? "" : "Host: " + host + "\r\n") + "\r\n";
+        HttpRequest request = new HttpRequest();
+        assertEquals(HttpRequestParser.COMPLETE, HttpRequestParser.parse(ByteBuffer.wrap(head.getBytes(ASCII)), request));
+        return request;
+    }
+
+    private static String match(RouteIndex index, String method, String host, String target) {
+        RouteIndex.Route route = index.match(request(method, host, target));
+        return route == null ? null : route.response;
+    }
+
+    @Test
+    public void hostWinsOverAnyHost() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/user", "any")
+                .add(RouteIndex.ANY, "api.example.com", "/api/user", "host")
+                .build();
+        assertEquals("host", match(index, "GET", "api.example.com", "/api/user"));
+        assertEquals("host", match(index, "GET", "API.Example.com:8080", "/api/user"));
+        assertEquals("any", match(index, "GET", "other.example.com", "/api/user"));
+        assertTrue(index.hasHost("API.example.com"));
+        assertFalse(index.hasHost("other.example.com"));
+        assertTrue(index.hasAnyHostRoutes());
+        assertFalse(new RouteIndex.Builder().add(RouteIndex.ANY, "h", "/", "h").build().hasAnyHostRoutes());
+        assertEquals("any", match(index, "GET", null, "/api/user"));
+    }
+
+    @Test
+    public void hostFallsBackToAnyHostWhenItHasNoRoute() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/login", "any")
+                .add(RouteIndex.ANY, "api.example.com", "/api/user", "host")
+                .build();
+        assertEquals("any", match(index, "GET", "api.example.com", "/login"));
+    }
+
+    @Test
+    public void methodWinsOverAnyMethod() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/user", "any")
+                .add("post", RouteIndex.ANY, "/api/user", "post")
+                .build();
+        assertEquals("post", match(index, "POST", "h", "/api/user"));
+        assertEquals("any", match(index, "GET", "h", "/api/user"));
+    }
+
+    @Test
+    public void literalOverWildcardOverPrefixOverSuffix() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/**/info", "suffix")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/**", "prefix")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/*/info", "wildcard")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/user/info", "literal")
+                .build();
+        assertEquals("literal", match(index, "GET", "h", "/api/user/info"));
+        assertEquals("wildcard", match(index, "GET", "h", "/api/order/info"));
+        assertEquals("prefix", match(index, "GET", "h", "/api/order/list"));
+        assertEquals("prefix", match(index, "GET", "h", "/api"));
+        assertEquals("suffix", match(index, "GET", "h", "/v2/user/info"));
+        assertNull(match(index, "GET", "h", "/v2/user/list"));
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/**", "root")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/**", "api")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/v2/**", "v2")
+                .build();
+        assertEquals("v2", match(index, "GET", "h", "/api/v2/user/info"));
+        assertEquals("api", match(index, "GET", "h", "/api/v1/user"));
+        assertEquals("root", match(index, "GET", "h", "/static/app.js"));
+    }
+
+    @Test
+    public void literalSegmentIsNotRetriedThroughWildcard() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/**", "prefix")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/user/x", "literal")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/*/info", "wildcard")
+                .build();
+        assertEquals("prefix", match(index, "GET", "h", "/api/user/info"));
+        assertEquals("wildcard", match(index, "GET", "h", "/api/order/info"));
+    }
+
+    @Test
+    public void queryIsIgnored() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add("GET", RouteIndex.ANY, "/api/user", "user")
+                .add("GET", RouteIndex.ANY, "/**/info.txt", "suffix")
+                .build();
+        assertEquals("user", match(index, "GET", "h", "/api/user?id=1&name=/x"));
+        assertEquals("user", match(index, "GET", "h", "/api/user/?id=1"));
+        assertEquals("suffix", match(index, "GET", "h", "/a/info.txt?v=2"));
+    }
+
+    @Test
+    public void absoluteFormTargets() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add(RouteIndex.ANY, "api.example.com", "/api/user", "host")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/", "root")
+                .build();
+        assertEquals("host", match(index, "GET", "api.example.com", "http://api.example.com/api/user?id=1"));
+        assertEquals("root", match(index, "GET", "api.example.com", "http://api.example.com/"));
+        // No path at all after the authority
+        assertNull(match(index, "GET", "api.example.com", "http://api.example.com"));
+    }
+
+    @Test
+    public void firstRouteForAPatternWins() {
+        RouteIndex index = new RouteIndex.Builder()
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/user", "first")
+                .add(RouteIndex.ANY, RouteIndex.ANY, "/api/user/", "second")
+                .build();
+        assertEquals("first", match(index, "GET", "h", "/api/user"));
+        assertEquals(2, index.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDoubleWildcardInTheMiddle() {
+        new RouteIndex.Builder().add(RouteIndex.ANY, RouteIndex.ANY, "/api/**/user", "bad");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownMethod() {
+        new RouteIndex.Builder().add("FETCH", RouteIndex.ANY, "/api", "bad");
+    }
+}
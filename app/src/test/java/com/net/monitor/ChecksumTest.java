@@ -0,0 +1,74 @@
+package com.net.monitor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumTest {
+    private static final int MAX_LENGTH = 16384;
+
+    private static ByteBuffer randomBuffer(ByteBuffer buffer, long seed) {
+        Random random = new Random(seed);
+        while (buffer.hasRemaining())
+            buffer.put((byte) random.nextInt());
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void assertMatchesReference(ByteBuffer buffer, int offset) {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            assertEquals("length " + length + " at offset " + offset,
+                    Checksum.sumShorts(buffer, offset, length), Checksum.sum(buffer, offset, length));
+        }
+    }
+
+    @Test
+    public void sumMatchesReferenceOnDirectBuffers() {
+        ByteBuffer buffer = randomBuffer(ByteBuffer.allocateDirect(MAX_LENGTH + 8), 1);
+        assertMatchesReference(buffer, 0);
+    }
+
+    @Test
+    public void sumMatchesReferenceOnHeapBuffers() {
+        ByteBuffer buffer = randomBuffer(ByteBuffer.allocate(MAX_LENGTH + 8), 2);
+        assertMatchesReference(buffer, 0);
+    }
+
+    @Test
+    public void sumMatchesReferenceAtUnalignedOffsets() {
+        ByteBuffer buffer = randomBuffer(ByteBuffer.allocateDirect(MAX_LENGTH + 8), 3);
+        for (int offset = 1; offset < 8; offset++)
+            assertMatchesReference(buffer, offset);
+    }
+
+    @Test
+    public void sumDoesNotOverflowOnAllOnes() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_LENGTH);
+        while (buffer.hasRemaining())
+            buffer.put((byte) 0xFF);
+        for (int length = 0; length <= MAX_LENGTH; length++)
+            assertEquals(Checksum.sumShorts(buffer, 0, length), Checksum.sum(buffer, 0, length));
+    }
+
+    @Test
+    public void finishMatchesRfc1071Example() {
+        // RFC 1071 section 3 example words
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{0x00, 0x01, (byte) 0xF2, 0x03,
+                (byte) 0xF4, (byte) 0xF5, (byte) 0xF6, (byte) 0xF7});
+        assertEquals(0xDDF2, Checksum.sum(buffer, 0, 8));
+        assertEquals((short) ~0xDDF2, Checksum.finish(Checksum.sum(buffer, 0, 8)));
+    }
+
+    @Test
+    public void updateMatchesRecomputation() {
+        ByteBuffer buffer = randomBuffer(ByteBuffer.allocate(64), 4);
+        int checksum = Checksum.finish(Checksum.sum(buffer, 0, 64)) & 0xFFFF;
+        int oldWord = buffer.getShort(10) & 0xFFFF;
+        buffer.putShort(10, (short) 0x1234);
+        int expected = Checksum.finish(Checksum.sum(buffer, 0, 64)) & 0xFFFF;
+        assertEquals(expected, Checksum.update(checksum, oldWord, 0x1234));
+    }
+}
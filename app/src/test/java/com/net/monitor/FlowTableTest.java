@@ -0,0 +1,148 @@
+package com.net.monitor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Random put/get/remove sequences checked against a HashMap shadow, on one thread and with
+ * several threads sharing the stripes, each owning its own keys.
+ */
+public class FlowTableTest {
+    private static final int OPERATIONS = 200000;
+
+    /**
+     * A flow key as TCPOutput packs it, destination address, destination port and source port
+     */
+    private static long flowKey(Random random, int keySpace) {
+        int flow = random.nextInt(keySpace);
+        return ((long) (0x5DB80000 | (flow >>> 8)) << 32) | (443L << 16) | (40000 + (flow & 0xFF));
+    }
+
+    private static void runOperations(FlowTable<Object> table, Map<Long, Object> shadow, Random random,
+                                      int keySpace, long keyTag) {
+        for (int i = 0; i < OPERATIONS; i++) {
+            long key = flowKey(random, keySpace) ^ keyTag;
+            int operation = random.nextInt(10);
+            if (operation < 4) {
+                Object value = new Object();
+                assertSame(shadow.put(key, value), table.put(key, value));
+            } else if (operation < 7) {
+                assertSame(shadow.get(key), table.get(key));
+            } else if (operation < 9) {
+                assertSame(shadow.remove(key), table.remove(key));
+            } else {
+                Object value = shadow.get(key);
+                if (value != null && random.nextBoolean()) {
+                    assertTrue(table.remove(key, value));
+                    shadow.remove(key);
+                } else {
+                    assertFalse(table.remove(key, new Object()));
+                }
+            }
+        }
+    }
+
+    private static Map<Long, Object> snapshot(FlowTable<Object> table) {
+        final Map<Long, Object> entries = new HashMap<>();
+        table.forEach(new FlowTable.Visitor<Object>() {
+            @Override
+            public void visit(long key, Object value) {
+                assertNull("key visited twice", entries.put(key, value));
+            }
+        });
+        return entries;
+    }
+
+    @Test
+    public void matchesShadowMap() {
+        // Small key space and initial size, so entries churn through tombstones and rehashes
+        FlowTable<Object> table = new FlowTable<>(16);
+        Map<Long, Object> shadow = new HashMap<>();
+        runOperations(table, shadow, new Random(1), 4096, 0);
+        assertEquals(shadow.size(), table.size());
+        assertEquals(shadow, snapshot(table));
+    }
+
+    @Test
+    public void removeWithValueLeavesNewerFlow() {
+        FlowTable<Object> table = new FlowTable<>(16);
+        Object stale = new Object();
+        Object current = new Object();
+        table.put(42L, stale);
+        table.put(42L, current);
+        assertFalse(table.remove(42L, stale));
+        assertSame(current, table.get(42L));
+        assertTrue(table.remove(42L, current));
+        assertNull(table.get(42L));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void forEachMayModifyTable() {
+        final FlowTable<Object> table = new FlowTable<>(16);
+        for (long key = 0; key < 1000; key++)
+            table.put(key, key);
+        table.forEach(new FlowTable.Visitor<Object>() {
+            @Override
+            public void visit(long key, Object value) {
+                table.remove(key, value);
+            }
+        });
+        assertEquals(0, table.size());
+        assertTrue(snapshot(table).isEmpty());
+    }
+
+    @Test(timeout = 60000)
+    public void matchesShadowMapsUnderContention() throws InterruptedException {
+        final FlowTable<Object> table = new FlowTable<>(64);
+        final int threadCount = 8;
+        final List<Map<Long, Object>> shadows = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final Map<Long, Object> shadow = new HashMap<>();
+            // Thread t owns the keys with t in their top byte, all threads share every stripe
+            final long keyTag = (long) t << 56;
+            final Random random = new Random(100 + t);
+            shadows.add(shadow);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        runOperations(table, shadow, random, 2048, keyTag);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        Map<Long, Object> expected = new HashMap<>();
+        for (Map<Long, Object> shadow : shadows)
+            expected.putAll(shadow);
+        assertEquals(expected.size(), table.size());
+        assertEquals(expected, snapshot(table));
+    }
+}
@@ -0,0 +1,73 @@
+package com.net.monitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * TCP option parsing of device SYNs, see {@link Packet#getMaxSegmentSize()} and
+ * {@link Packet#getWindowScale()}.
+ */
+public class PacketTest {
+    private static final byte NOP = 1;
+    private static final byte END = 0;
+
+    private static byte[] options(int... bytes) {
+        byte[] options = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            options[i] = (byte) bytes[i];
+        return options;
+    }
+
+    @Test
+    public void parsesTypicalSynOptions() {
+        // MSS 1400, SACK permitted, timestamps, NOP, window scale 7, as Linux sends them
+        Packet syn = TestPackets.syn(options(2, 4, 0x05, 0x78, 4, 2, 8, 10, 0, 0, 0, 1, 0, 0, 0, 0,
+                NOP, 3, 3, 7));
+        assertEquals(1400, syn.getMaxSegmentSize());
+        assertEquals(7, syn.getWindowScale());
+    }
+
+    @Test
+    public void skipsNopPadding() {
+        Packet syn = TestPackets.syn(options(NOP, NOP, NOP, 3, 3, 2, 2, 4, 0x02, 0x18, NOP, NOP));
+        assertEquals(536, syn.getMaxSegmentSize());
+        assertEquals(2, syn.getWindowScale());
+    }
+
+    @Test
+    public void absentOptions() {
+        Packet syn = TestPackets.syn(new byte[0]);
+        assertEquals(0, syn.getMaxSegmentSize());
+        assertEquals(-1, syn.getWindowScale());
+    }
+
+    @Test
+    public void stopsAtEndOfOptionList() {
+        Packet syn = TestPackets.syn(options(END, 0, 0, 0, 2, 4, 0x05, 0xB4));
+        assertEquals(0, syn.getMaxSegmentSize());
+    }
+
+    @Test
+    public void capsWindowScale() {
+        // RFC 7323 section 2.3
+        Packet syn = TestPackets.syn(options(3, 3, 15, NOP));
+        assertEquals(14, syn.getWindowScale());
+    }
+
+    @Test
+    public void ignoresOptionsWithWrongLength() {
+        Packet syn = TestPackets.syn(options(2, 3, 0x05, 3, 4, 7, 0, 0));
+        assertEquals(0, syn.getMaxSegmentSize());
+        assertEquals(-1, syn.getWindowScale());
+    }
+
+    @Test
+    public void stopsAtMalformedLength() {
+        // A zero length would otherwise loop forever
+        assertEquals(0, TestPackets.syn(options(8, 0, 2, 4, 0x05, 0xB4, 0, 0)).getMaxSegmentSize());
+        // Options running past the header are not read
+        assertEquals(0, TestPackets.syn(options(NOP, NOP, NOP, NOP, NOP, 2, 4, 0x05)).getMaxSegmentSize());
+        assertEquals(0, TestPackets.syn(options(NOP, NOP, 8, 10, 0, 0, 0, 0)).getMaxSegmentSize());
+    }
+}
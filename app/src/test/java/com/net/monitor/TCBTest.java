@@ -0,0 +1,130 @@
+package com.net.monitor;
+
+import com.net.monitor.util.AppUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Device payload written through {@link TCB#writeToNetwork} must reach the server in order even
+ * when the socket takes only part of it. A loopback connection with small buffers and a slow
+ * reader makes the non-blocking writes short.
+ */
+public class TCBTest {
+    private static final int SEGMENT_SIZE = 1460;
+    private static final int SEGMENT_COUNT = 4000;
+    // Bytes at stream offset n are n % PATTERN, a prime so that segments never line up with it
+    private static final int PATTERN = 251;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel peer;
+    private TCB tcb;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        client = SocketChannel.open();
+        client.socket().setSendBufferSize(16384);
+        client.connect(server.socket().getLocalSocketAddress());
+        peer = server.accept();
+        peer.socket().setReceiveBufferSize(16384);
+        peer.configureBlocking(false);
+        client.configureBlocking(false);
+
+        Packet referencePacket = TestPackets.tcp(Packet.TCPHeader.ACK, 1000, 0, new byte[0], new byte[0]).copyHeader();
+        tcb = new TCB(1L, 0, 1000, 1001, 0, client, referencePacket);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        AppUtils.closeResources(client, peer, server);
+    }
+
+    @Test(timeout = 30000)
+    public void shortWritesKeepByteOrder() throws IOException {
+        ByteBuffer received = ByteBuffer.allocate(SEGMENT_SIZE * SEGMENT_COUNT);
+        ByteBuffer segment = ByteBuffer.allocate(SEGMENT_SIZE);
+        long offset = 0;
+        boolean sawShortWrite = false;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segment.clear();
+            while (segment.hasRemaining())
+                segment.put((byte) (offset++ % PATTERN));
+            segment.flip();
+            tcb.writeToNetwork(segment);
+            sawShortWrite |= !tcb.pendingWrites.isEmpty();
+
+            // Read less than is written, as a slow server would, and flush like OP_WRITE does
+            if (i % 4 == 0) {
+                readSome(received, SEGMENT_SIZE);
+                tcb.flushPendingWrites();
+            }
+        }
+        while (received.hasRemaining()) {
+            readSome(received, received.remaining());
+            tcb.flushPendingWrites();
+        }
+
+        assertTrue("socket never took a partial write", sawShortWrite);
+        assertTrue(tcb.pendingWrites.isEmpty());
+        received.flip();
+        for (int i = 0; i < received.limit(); i++)
+            assertEquals("byte " + i, (byte) (i % PATTERN), received.get(i));
+    }
+
+    @Test(timeout = 30000)
+    public void pendingWritesAreCapped() throws IOException {
+        ByteBuffer segment = ByteBuffer.allocate(SEGMENT_SIZE);
+        long written = 0;
+        // The server reads nothing, so everything beyond the socket buffers queues up
+        while (!tcb.isWriteBacklogFull(SEGMENT_SIZE)) {
+            segment.clear();
+            tcb.writeToNetwork(segment);
+            written += SEGMENT_SIZE;
+            assertTrue("backlog not capped after " + written + " bytes",
+                    written < 4L * VpnConfig.TCP_MAX_PENDING_WRITE_BYTES);
+        }
+        assertTrue(tcb.pendingWriteBytes <= VpnConfig.TCP_MAX_PENDING_WRITE_BYTES);
+        assertTrue(tcb.pendingWriteBytes > VpnConfig.TCP_MAX_PENDING_WRITE_BYTES - SEGMENT_SIZE);
+        assertEquals(tcb.pendingWriteBytes, queuedBytes());
+
+        // Once the server reads, flushes shrink the backlog until it is gone
+        ByteBuffer received = ByteBuffer.allocate(8192);
+        while (tcb.pendingWriteBytes > 0) {
+            received.clear();
+            peer.read(received);
+            tcb.flushPendingWrites();
+            assertEquals(tcb.pendingWriteBytes, queuedBytes());
+        }
+        assertTrue(tcb.pendingWrites.isEmpty());
+        assertFalse(tcb.isWriteBacklogFull(SEGMENT_SIZE));
+    }
+
+    private int queuedBytes() {
+        int bytes = 0;
+        for (ByteBuffer buffer : tcb.pendingWrites)
+            bytes += buffer.remaining();
+        return bytes;
+    }
+
+    private void readSome(ByteBuffer received, int max) throws IOException {
+        int limit = received.limit();
+        received.limit(Math.min(limit, received.position() + max));
+        peer.read(received);
+        received.limit(limit);
+    }
+}
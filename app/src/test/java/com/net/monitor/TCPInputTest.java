@@ -0,0 +1,222 @@
+package com.net.monitor;
+
+import com.net.monitor.util.AppUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splitting of socket reads into device segments: one per MSS, consecutive sequence numbers,
+ * PSH on the last segment of each read only, and no more than the device window. Sockets are
+ * real loopback connections driven through the shard's selector.
+ */
+public class TCPInputTest {
+    private static final int MSS = 1000;
+    private static final long INITIAL_SEQUENCE = 5000;
+    // Socket bytes per read in TCPInput
+    private static final int READ_SIZE = 16384;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel peer;
+    private Selector selector;
+    private PacketQueue outputQueue;
+    private TCPInput input;
+    private TCB tcb;
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        peer = server.accept();
+        client.configureBlocking(false);
+        selector = Selector.open();
+
+        Packet referencePacket = TestPackets.tcp(Packet.TCPHeader.ACK, 1000, 0, new byte[0], new byte[0]).copyHeader();
+        referencePacket.swapSourceAndDestination();
+        tcb = new TCB(1L, INITIAL_SEQUENCE, 1000, 1001, INITIAL_SEQUENCE, client, referencePacket);
+        tcb.maxSegmentSize = MSS;
+        tcb.sendWindow = 1 << 20;
+        tcb.selectionKey = client.register(selector, SelectionKey.OP_READ, tcb);
+
+        outputQueue = new PacketQueue("to-device", 1024, PacketQueue.Policy.PAUSE);
+        input = new TCPInput(outputQueue, selector, new TimingWheel(100, 64, null));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        AppUtils.closeResources(selector, client, peer, server);
+    }
+
+    /**
+     * Send length bytes from the server, counting from offset, and let the shard read them
+     */
+    private void serverSends(int offset, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++)
+            data.put((byte) (offset + i));
+        data.flip();
+        while (data.hasRemaining())
+            peer.write(data);
+        // Loopback has queued everything at the client by the time the write returns
+        assertEquals(1, selector.select(1000));
+        input.processSelectedKeys();
+    }
+
+    private List<Packet> deviceSegments() {
+        List<Packet> segments = new ArrayList<>();
+        ByteBuffer buffer;
+        while ((buffer = outputQueue.poll()) != null) {
+            buffer.flip();
+            segments.add(new Packet(buffer));
+        }
+        return segments;
+    }
+
+    private static void assertValidChecksums(Packet segment) {
+        ByteBuffer buffer = segment.backingBuffer;
+        int tcpLength = buffer.limit() - Packet.IP4_HEADER_SIZE;
+        assertEquals(0xFFFF, Checksum.sum(buffer, 0, Packet.IP4_HEADER_SIZE));
+        int sum = Checksum.pseudoHeaderSum(segment.getSourceAddress(), segment.getDestinationAddress(),
+                Packet.PROTOCOL_TCP) + tcpLength + Checksum.sum(buffer, Packet.IP4_HEADER_SIZE, tcpLength);
+        assertEquals(0xFFFF, Checksum.fold(sum));
+    }
+
+    /**
+     * Check sizes, sequence numbers, payload bytes and flags of segments carrying the stream
+     * from offset, with PSH expected at the given segment indexes
+     */
+    private void assertSegments(List<Packet> segments, int offset, int[] sizes, int... pushed) {
+        assertEquals(sizes.length, segments.size());
+        long sequenceNum = INITIAL_SEQUENCE + offset;
+        int pushIndex = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            Packet segment = segments.get(i);
+            ByteBuffer buffer = segment.backingBuffer;
+            assertEquals("segment " + i, sizes[i], buffer.remaining());
+            assertEquals(sequenceNum, segment.getSequenceNumber());
+            assertEquals(tcb.myAcknowledgementNum, segment.getAcknowledgementNumber());
+            assertTrue(segment.isACK());
+            boolean push = pushIndex < pushed.length && pushed[pushIndex] == i;
+            if (push)
+                pushIndex++;
+            assertEquals("PSH on segment " + i, push, segment.isPSH());
+            for (int j = 0; j < sizes[i]; j++)
+                assertEquals((byte) (offset + j), buffer.get(buffer.position() + j));
+            assertValidChecksums(segment);
+            offset += sizes[i];
+            sequenceNum += sizes[i];
+        }
+        assertEquals(INITIAL_SEQUENCE + offset, tcb.mySequenceNum);
+    }
+
+    private static int[] sizes(int length, int mss) {
+        int[] sizes = new int[(length + mss - 1) / mss];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = Math.min(mss, length - i * mss);
+        return sizes;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        int[] both = new int[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    @Test(timeout = 10000)
+    public void splitsReadIntoMssSegments() throws IOException {
+        serverSends(0, 4500);
+        assertSegments(deviceSegments(), 0, new int[]{1000, 1000, 1000, 1000, 500}, 4);
+    }
+
+    @Test(timeout = 10000)
+    public void exactMultipleOfMss() throws IOException {
+        serverSends(0, 3000);
+        assertSegments(deviceSegments(), 0, new int[]{1000, 1000, 1000}, 2);
+    }
+
+    @Test(timeout = 10000)
+    public void pushesOnlyAtTheEndOfEachRead() throws IOException {
+        // A full read of 16 segments and 384 bytes, then the rest in a second read
+        serverSends(0, 20000);
+        int[] first = sizes(READ_SIZE, MSS);
+        int[] second = sizes(20000 - READ_SIZE, MSS);
+        assertSegments(deviceSegments(), 0, concat(first, second), first.length - 1,
+                first.length + second.length - 1);
+    }
+
+    @Test(timeout = 10000)
+    public void readsNoMoreThanTheDeviceWindow() throws IOException {
+        tcb.sendWindow = 2500;
+        serverSends(0, 4500);
+        assertSegments(deviceSegments(), 0, new int[]{1000, 1000, 500}, 2);
+        assertTrue(tcb.readPaused);
+        assertFalse((tcb.selectionKey.interestOps() & SelectionKey.OP_READ) != 0);
+    }
+
+    @Test(timeout = 30000)
+    public void downloadsMultiMegabyteBody() throws Exception {
+        final int length = 4 << 20;
+        tcb.sendWindow = 65535;
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer data = ByteBuffer.allocate(8192);
+                try {
+                    for (int offset = 0; offset < length; offset += data.capacity()) {
+                        data.clear();
+                        for (int i = 0; i < data.capacity(); i++)
+                            data.put((byte) (offset + i));
+                        data.flip();
+                        while (data.hasRemaining())
+                            peer.write(data);
+                    }
+                } catch (IOException e) {
+                    // The assertions below fail on the missing bytes
+                }
+            }
+        });
+        sender.start();
+
+        long received = 0;
+        while (received < length) {
+            selector.select(100);
+            input.processSelectedKeys();
+            for (Packet segment : deviceSegments()) {
+                ByteBuffer buffer = segment.backingBuffer;
+                assertEquals(INITIAL_SEQUENCE + received, segment.getSequenceNumber());
+                assertTrue(buffer.remaining() <= MSS);
+                for (int i = buffer.position(); i < buffer.limit(); i++)
+                    assertEquals((byte) received++, buffer.get(i));
+            }
+            // The device acknowledges everything it got, reopening its window
+            tcb.theirAcknowledgementNum = tcb.mySequenceNum;
+            if (tcb.readPaused) {
+                tcb.readPaused = false;
+                tcb.setInterest(SelectionKey.OP_READ, true);
+            }
+            input.resumeQueuePausedFlows();
+        }
+        sender.join();
+        assertEquals(length, received);
+        assertEquals(INITIAL_SEQUENCE + length, tcb.mySequenceNum);
+    }
+}
@@ -0,0 +1,186 @@
+package com.net.monitor;
+
+import com.net.monitor.http.HttpRequest;
+import com.net.monitor.listener.IFlowClassifier;
+import com.net.monitor.listener.IHttpMonitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mock responses of a mocked flow, which never connects upstream, must respect the device's
+ * receive window and come before our FIN.
+ */
+public class TCPOutputTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int WINDOW = 3000;
+    private static final int MSS = 1000;
+    private static final long DEVICE_ISN = 1000;
+    private static final byte[] REQUEST = "POST /api/order HTTP/1.1\r\nHost: mock.example.com\r\n\r\n".getBytes(ASCII);
+
+    private final byte[] body = new byte[10000];
+    private Selector selector;
+    private SelectorTaskQueue shardTasks;
+    private PacketQueue deviceQueue;
+    private TCPOutput output;
+    private Monitor monitor;
+    private long serverIsn;
+
+    private class Monitor implements IHttpMonitor, IFlowClassifier {
+        @Override
+        public byte[] onHttpRequest(HttpRequest request) {
+            return body;
+        }
+
+        @Override
+        public int classify(int address, int port, String host) {
+            return MOCKED;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Arrays.fill(body, (byte) 'x');
+        selector = Selector.open();
+        shardTasks = new SelectorTaskQueue(selector);
+        deviceQueue = new PacketQueue("to-device", 1024, PacketQueue.Policy.PAUSE);
+        Executor sameThread = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        output = new TCPOutput(deviceQueue, selector, new TimingWheel(100, 64, null), shardTasks, sameThread, null);
+        monitor = new Monitor();
+        VpnManager.getInstance().registerHttpMonitorListener(monitor);
+
+        // MSS option of the device's SYN
+        byte[] options = {2, 4, (byte) (MSS >> 8), (byte) MSS};
+        output.processPacket(TestPackets.tcp(Packet.TCPHeader.SYN, DEVICE_ISN, 0, WINDOW, options, new byte[0]).backingBuffer);
+        List<Packet> synAck = devicePackets();
+        assertEquals(1, synAck.size());
+        assertTrue(synAck.get(0).isSYN());
+        serverIsn = synAck.get(0).getSequenceNumber();
+        deviceAck(serverIsn + 1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        VpnManager.getInstance().unRegisterHttpMonitorListener(monitor);
+        TCB tcb = TCB.getTCB(TCB.TCBKey.pack(TestPackets.SERVER_ADDRESS, 443, 40000));
+        if (tcb != null)
+            TCB.closeTCB(tcb);
+        selector.close();
+    }
+
+    private void deviceAck(long ackNum) throws IOException {
+        output.processPacket(TestPackets.tcp(Packet.TCPHeader.ACK, DEVICE_ISN + 1 + REQUEST.length, ackNum,
+                WINDOW, new byte[0], new byte[0]).backingBuffer);
+    }
+
+    private void sendRequest() throws IOException {
+        output.processPacket(TestPackets.tcp(Packet.TCPHeader.ACK | Packet.TCPHeader.PSH, DEVICE_ISN + 1,
+                serverIsn + 1, WINDOW, new byte[0], REQUEST).backingBuffer);
+        // The decision ran on the executor, its result comes back through the shard's tasks
+        shardTasks.runPending();
+    }
+
+    private List<Packet> devicePackets() {
+        List<Packet> packets = new ArrayList<>();
+        ByteBuffer buffer;
+        while ((buffer = deviceQueue.poll()) != null) {
+            buffer.flip();
+            packets.add(new Packet(buffer));
+        }
+        return packets;
+    }
+
+    /**
+     * Append the payload of the data segments to received, checking they follow each other
+     *
+     * @return the packets without payload
+     */
+    private List<Packet> receive(List<Packet> packets, ByteArrayOutputStream received) {
+        List<Packet> control = new ArrayList<>();
+        for (Packet packet : packets) {
+            ByteBuffer buffer = packet.backingBuffer;
+            if (!buffer.hasRemaining()) {
+                control.add(packet);
+                continue;
+            }
+            assertEquals(serverIsn + 1 + received.size(), packet.getSequenceNumber());
+            assertTrue(buffer.remaining() <= MSS);
+            while (buffer.hasRemaining())
+                received.write(buffer.get());
+        }
+        return control;
+    }
+
+    private static String expectedResponse(byte[] body) {
+        return "HTTP/1.1 200 OK\r\nContent-Type: application/json;charset=utf-8\r\nContent-Length: "
+                + body.length + "\r\nConnection: keep-alive\r\n\r\n" + new String(body, ASCII);
+    }
+
+    @Test
+    public void mockResponseRespectsDeviceWindow() throws IOException {
+        sendRequest();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        receive(devicePackets(), received);
+        assertEquals(WINDOW, received.size());
+
+        String expected = expectedResponse(body);
+        while (received.size() < expected.length()) {
+            // Without an ACK nothing more goes out
+            assertTrue(devicePackets().isEmpty());
+            int before = received.size();
+            deviceAck(serverIsn + 1 + received.size());
+            receive(devicePackets(), received);
+            assertEquals(Math.min(WINDOW, expected.length() - before), received.size() - before);
+        }
+        assertEquals(expected, new String(received.toByteArray(), ASCII));
+    }
+
+    @Test
+    public void finWaitsForMockResponse() throws IOException {
+        sendRequest();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        receive(devicePackets(), received);
+
+        // The device closes its side while most of the response is still to come
+        output.processPacket(TestPackets.tcp(Packet.TCPHeader.FIN | Packet.TCPHeader.ACK,
+                DEVICE_ISN + 1 + REQUEST.length, serverIsn + 1, WINDOW, new byte[0], new byte[0]).backingBuffer);
+        List<Packet> control = receive(devicePackets(), received);
+        assertEquals(1, control.size());
+        assertFalse(control.get(0).isFIN());
+        assertEquals(DEVICE_ISN + 2 + REQUEST.length, control.get(0).getAcknowledgementNumber());
+
+        String expected = expectedResponse(body);
+        Packet fin = null;
+        while (fin == null) {
+            output.processPacket(TestPackets.tcp(Packet.TCPHeader.ACK, DEVICE_ISN + 2 + REQUEST.length,
+                    serverIsn + 1 + received.size(), WINDOW, new byte[0], new byte[0]).backingBuffer);
+            for (Packet packet : receive(devicePackets(), received)) {
+                if (packet.isFIN())
+                    fin = packet;
+            }
+            assertTrue(received.size() <= expected.length());
+        }
+        assertEquals(expected.length(), received.size());
+        assertEquals(serverIsn + 1 + expected.length(), fin.getSequenceNumber());
+    }
+}
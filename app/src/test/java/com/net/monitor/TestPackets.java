@@ -0,0 +1,50 @@
+package com.net.monitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Device packets for tests, built by hand so that they do not depend on the code under test.
+ */
+class TestPackets {
+    static final int DEVICE_ADDRESS = 0x0A000002;
+    static final int SERVER_ADDRESS = 0x5DB8D822;
+
+    private TestPackets() {
+    }
+
+    /**
+     * A device-to-network TCP segment with the given options (already padded to 4 bytes) and
+     * payload, wrapped and positioned at its payload.
+     */
+    static Packet tcp(int flags, long sequenceNum, long ackNum, byte[] options, byte[] payload) {
+        return tcp(flags, sequenceNum, ackNum, 65535, options, payload);
+    }
+
+    static Packet tcp(int flags, long sequenceNum, long ackNum, int window, byte[] options, byte[] payload) {
+        int headerLength = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE + options.length;
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + payload.length);
+        buffer.put(0, (byte) 0x45);
+        buffer.putShort(2, (short) (headerLength + payload.length));
+        buffer.put(8, (byte) 64);
+        buffer.put(9, (byte) Packet.PROTOCOL_TCP);
+        buffer.putInt(12, DEVICE_ADDRESS);
+        buffer.putInt(16, SERVER_ADDRESS);
+        int tcp = Packet.IP4_HEADER_SIZE;
+        buffer.putShort(tcp, (short) 40000);
+        buffer.putShort(tcp + 2, (short) 443);
+        buffer.putInt(tcp + 4, (int) sequenceNum);
+        buffer.putInt(tcp + 8, (int) ackNum);
+        buffer.put(tcp + 12, (byte) ((Packet.TCP_HEADER_SIZE + options.length) << 2));
+        buffer.put(tcp + 13, (byte) flags);
+        buffer.putShort(tcp + 14, (short) window);
+        for (int i = 0; i < options.length; i++)
+            buffer.put(tcp + Packet.TCP_HEADER_SIZE + i, options[i]);
+        for (int i = 0; i < payload.length; i++)
+            buffer.put(headerLength + i, payload[i]);
+        return new Packet(buffer);
+    }
+
+    static Packet syn(byte[] options) {
+        return tcp(Packet.TCPHeader.SYN, 1000, 0, options, new byte[0]);
+    }
+}
@@ -0,0 +1,85 @@
+package com.intercepter;
+
+import com.net.monitor.http.HttpRequest;
+import com.net.monitor.http.HttpRequestParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RouteIndex#match} at 10, 1k and 100k routes, which should cost about the same. The
+ * routes mix host-bound wildcard paths, any-host suffix routes and prefix routes; the requests
+ * hit one of each and miss once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteIndexBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int routes;
+
+    private RouteIndex index;
+    private HttpRequest[] requests;
+    private int next;
+
+    private static HttpRequest request(String head) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(head.length());
+        buffer.put(head.getBytes(Charset.forName("US-ASCII")));
+        buffer.flip();
+        HttpRequest request = new HttpRequest();
+        HttpRequestParser.parse(buffer, request);
+        return request;
+    }
+
+    @Setup
+    public void setUp() {
+        RouteIndex.Builder builder = new RouteIndex.Builder();
+        for (int i = 0; i < routes; i++) {
+            switch (i % 3) {
+                case 0:
+                    builder.add("GET", "h" + (i % 50) + ".com", "/api/v" + (i % 7) + "/res" + i + "/*/detail", "r" + i);
+                    break;
+                case 1:
+                    builder.add("POST", RouteIndex.ANY, "/**/name" + i, "r" + i);
+                    break;
+                default:
+                    builder.add(RouteIndex.ANY, "h" + (i % 50) + ".com", "/static/" + i + "/**", "r" + i);
+                    break;
+            }
+        }
+        index = builder.build();
+        requests = new HttpRequest[]{
+                request("GET /api/v3/res3/77/detail HTTP/1.1\r\nHost: h3.com\r\n\r\n"),
+                request("POST /gulf/driver/name1?q=1 HTTP/1.1\r\nHost: z.com\r\n\r\n"),
+                request("GET /static/5/a/b/c.js HTTP/1.1\r\nHost: h5.com\r\n\r\n"),
+                request("GET /nomatch/at/all HTTP/1.1\r\nHost: h1.com\r\n\r\n"),
+        };
+        for (int i = 0; i < 3; i++) {
+            if (index.match(requests[i]) == null)
+                throw new IllegalStateException("No route for request " + i);
+        }
+    }
+
+    @Benchmark
+    public RouteIndex.Route match() {
+        HttpRequest request = requests[next];
+        next = (next + 1) & 3;
+        return index.match(request);
+    }
+}
@@ -0,0 +1,100 @@
+package com.net.monitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flow lookups with some connection churn at 1, 3 and 8 threads, on {@link FlowTable} and on a
+ * synchronized access-ordered LinkedHashMap like the LRUCache of TCBs it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlowTableBenchmark {
+    private static final int FLOWS = 1024;
+    // One lookup in this many closes and reopens its flow
+    private static final int CHURN = 64;
+
+    @Param({"flowTable", "synchronizedLru"})
+    public String table;
+
+    private long[] keys;
+    private FlowTable<Object> flowTable;
+    private Map<Long, Object> lru;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = new Random().nextInt(FLOWS);
+        final Object value = new Object();
+    }
+
+    @Setup
+    public void setUp() {
+        keys = new long[FLOWS];
+        Random random = new Random(0);
+        flowTable = new FlowTable<>(VpnConfig.TCP_MAX_FLOWS);
+        lru = new LinkedHashMap<>(VpnConfig.TCP_MAX_FLOWS + 1, 1, true);
+        for (int i = 0; i < FLOWS; i++) {
+            keys[i] = ((long) random.nextInt() << 32) | (443L << 16) | (32768 + random.nextInt(28232));
+            flowTable.put(keys[i], keys);
+            lru.put(keys[i], keys);
+        }
+    }
+
+    private Object lookup(Cursor cursor) {
+        int index = cursor.next;
+        cursor.next = (index + 1) & (FLOWS - 1);
+        long key = keys[index];
+        boolean churn = index % CHURN == 0;
+        if (table.equals("flowTable")) {
+            if (churn) {
+                flowTable.remove(key);
+                flowTable.put(key, cursor.value);
+            }
+            return flowTable.get(key);
+        }
+        synchronized (lru) {
+            if (churn) {
+                lru.remove(key);
+                lru.put(key, cursor.value);
+            }
+            return lru.get(key);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object oneThread(Cursor cursor) {
+        return lookup(cursor);
+    }
+
+    @Benchmark
+    @Threads(3)
+    public Object threeThreads(Cursor cursor) {
+        return lookup(cursor);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object eightThreads(Cursor cursor) {
+        return lookup(cursor);
+    }
+}